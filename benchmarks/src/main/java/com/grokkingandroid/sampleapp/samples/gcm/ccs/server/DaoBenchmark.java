@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The registration stores and the message id generator under contention.
+ * <br>
+ * The registration ids come from a fixed pool, so that the DAO reaches
+ * a steady state instead of growing with every iteration.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+@State(Scope.Benchmark)
+public class DaoBenchmark {
+
+    private static final int REGISTRATIONS = 100000;
+    private static final int ACCOUNTS = 10000;
+
+    @Param({"PseudoDao", "CompactRegistrationStore"})
+    String mStoreType;
+
+    private PseudoDao mDao;
+    private RegistrationStore mStore;
+    private String[] mRegIds;
+    private String[] mAccounts;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mDao = new PseudoDao();
+        mStore = mStoreType.equals("PseudoDao") ? mDao : new CompactRegistrationStore();
+        mRegIds = new String[REGISTRATIONS];
+        for (int i = 0; i < REGISTRATIONS; i++) {
+            mRegIds[i] = "APA91bHun4MxP5egoKMwt2KZFBaFUH-" + i;
+        }
+        mAccounts = new String[ACCOUNTS];
+        for (int i = 0; i < ACCOUNTS; i++) {
+            mAccounts[i] = "user" + i + "@example.com";
+        }
+        for (int i = 0; i < REGISTRATIONS; i++) {
+            mStore.addRegistration(mRegIds[i], mAccounts[i % ACCOUNTS]);
+        }
+    }
+
+    /**
+     * Adds a registration, now and then moving it to another account.
+     */
+    @Benchmark
+    public void addRegistration() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        mStore.addRegistration(mRegIds[random.nextInt(REGISTRATIONS)],
+                mAccounts[random.nextInt(ACCOUNTS)]);
+    }
+
+    @Benchmark
+    public Iterable<String> registrationIdsForAccount() {
+        return mStore.getAllRegistrationIdsForAccount(
+                mAccounts[ThreadLocalRandom.current().nextInt(ACCOUNTS)]);
+    }
+
+    @Benchmark
+    public String getUniqueMessageId() {
+        return mDao.getUniqueMessageId();
+    }
+}
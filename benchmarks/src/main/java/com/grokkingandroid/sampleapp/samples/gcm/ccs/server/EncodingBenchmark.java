@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONValue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encoding of downstream messages: the attribute map plus json-simple
+ * the client started with, the streaming codec, precomputed templates
+ * and the XMPP stanza around the JSON.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EncodingBenchmark {
+
+    private static final String TO = "APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx-rYkB4lK3v9xXpJE5CnZoc7rTqBd";
+    private static final String MESSAGE_ID = "m-4f1c2a-1";
+
+    @Param({"1", "10"})
+    int mPayloadSize;
+
+    private Map<String, String> mPayload;
+    private MessageTemplate mTemplate;
+    private MessageCodec mJsonSimpleCodec;
+    private MessageCodec mStreamingCodec;
+    private CcsClient.GcmPacketExtension mExtension;
+
+    @Setup
+    public void setUp() {
+        mPayload = new HashMap<String, String>();
+        for (int i = 0; i < mPayloadSize; i++) {
+            mPayload.put("key" + i, "Some value with \"quotes\" & <markup> " + i);
+        }
+        mTemplate = new MessageTemplate(mPayload, "news", 3600L, Boolean.FALSE);
+        mJsonSimpleCodec = new JsonSimpleCodec();
+        mStreamingCodec = new StreamingJsonCodec();
+        mExtension = new CcsClient.GcmPacketExtension(
+                mStreamingCodec.encodeMessage(TO, MESSAGE_ID, mPayload, "news", 3600L, false));
+    }
+
+    @Benchmark
+    public Map createAttributeMap() {
+        return CcsClient.createAttributeMap(TO, MESSAGE_ID, mPayload, "news", 3600L, false);
+    }
+
+    /**
+     * The original createJsonMessage(): attribute map plus json-simple.
+     */
+    @Benchmark
+    public String createJsonMessageJsonSimple() {
+        return JSONValue.toJSONString(
+                CcsClient.createAttributeMap(TO, MESSAGE_ID, mPayload, "news", 3600L, false));
+    }
+
+    @Benchmark
+    public String encodeMessageJsonSimpleCodec() {
+        return mJsonSimpleCodec.encodeMessage(TO, MESSAGE_ID, mPayload, "news", 3600L, false);
+    }
+
+    @Benchmark
+    public String encodeMessageStreamingCodec() {
+        return mStreamingCodec.encodeMessage(TO, MESSAGE_ID, mPayload, "news", 3600L, false);
+    }
+
+    /**
+     * JSON plus the stanza around it, as written to the connection.
+     */
+    @Benchmark
+    public String encodeMessageStanzaStreamingCodec() {
+        return mStreamingCodec.encodeMessageStanza(TO, MESSAGE_ID, mPayload, "news", 3600L, false);
+    }
+
+    @Benchmark
+    public String templateToStanza() {
+        return mTemplate.toStanza(TO, MESSAGE_ID);
+    }
+
+    @Benchmark
+    public String extensionToXml() {
+        return mExtension.toXML();
+    }
+
+    /**
+     * The stanza as the client originally built it: a packet wrapping
+     * the extension, serialized by Smack.
+     */
+    @Benchmark
+    public String extensionToPacketToXml() {
+        return mExtension.toPacket().toXML();
+    }
+}
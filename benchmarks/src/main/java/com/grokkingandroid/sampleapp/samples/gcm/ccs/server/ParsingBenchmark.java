@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing of inbound messages as done in the packet listener: the
+ * json-simple map the client started with, both codecs and the
+ * ack/nack fast path.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParsingBenchmark {
+
+    private static final String ACK = "{\"from\":\"APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx-rYkB4lK3v9xXpJE5CnZoc7rTqBd\","
+            + "\"message_id\":\"m-4f1c2a-1\",\"message_type\":\"ack\"}";
+    private static final String NACK = "{\"message_type\":\"nack\",\"message_id\":\"m-4f1c2a-2\","
+            + "\"from\":\"APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx-rYkB4lK3v9xXpJE5CnZoc7rTqBd\","
+            + "\"error\":\"DEVICE_UNREGISTERED\",\"error_description\":\"Device is not registered\"}";
+    private static final String UPSTREAM = "{\"category\":\"com.grokkingandroid.sampleapp.samples.gcm\","
+            + "\"data\":{\"action\":\"com.grokkingandroid.sampleapp.samples.gcm.ECHO\","
+            + "\"message\":\"Hello \\\"world\\\"\",\"account\":\"someone@example.com\"},"
+            + "\"message_id\":\"4f1c2a-7\","
+            + "\"from\":\"APA91bHun4MxP5egoKMwt2KZFBaFUH-1RYqx-rYkB4lK3v9xXpJE5CnZoc7rTqBd\"}";
+
+    private final MessageCodec mJsonSimpleCodec = new JsonSimpleCodec();
+    private final MessageCodec mStreamingCodec = new StreamingJsonCodec();
+
+    /**
+     * The original listener: everything into a json-simple map.
+     */
+    @Benchmark
+    public Map ackJsonSimpleMap() throws ParseException {
+        return (Map) JSONValue.parseWithException(ACK);
+    }
+
+    @Benchmark
+    public InboundMessage ackJsonSimpleCodec() {
+        return mJsonSimpleCodec.decode(ACK);
+    }
+
+    @Benchmark
+    public InboundMessage ackStreamingCodec() {
+        return mStreamingCodec.decode(ACK);
+    }
+
+    @Benchmark
+    public InboundMessage ackReceiptScanner() {
+        return ReceiptScanner.scan(ACK);
+    }
+
+    @Benchmark
+    public InboundMessage nackStreamingCodec() {
+        return mStreamingCodec.decode(NACK);
+    }
+
+    @Benchmark
+    public InboundMessage nackReceiptScanner() {
+        return ReceiptScanner.scan(NACK);
+    }
+
+    @Benchmark
+    public Map upstreamJsonSimpleMap() throws ParseException {
+        return (Map) JSONValue.parseWithException(UPSTREAM);
+    }
+
+    @Benchmark
+    public InboundMessage upstreamJsonSimpleCodec() {
+        return mJsonSimpleCodec.decode(UPSTREAM);
+    }
+
+    @Benchmark
+    public InboundMessage upstreamStreamingCodec() {
+        return mStreamingCodec.decode(UPSTREAM);
+    }
+
+    /**
+     * What the listener does for an upstream message: the scanner gives
+     * up, then the codec parses it.
+     */
+    @Benchmark
+    public InboundMessage upstreamScannerThenCodec() {
+        InboundMessage msg = ReceiptScanner.scan(UPSTREAM);
+        return msg != null ? msg : mStreamingCodec.decode(UPSTREAM);
+    }
+}
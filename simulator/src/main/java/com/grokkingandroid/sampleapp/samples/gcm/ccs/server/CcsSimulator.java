@@ -0,0 +1,621 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+
+/**
+ * A fake CCS for load and soak tests.
+ * <br>
+ * The simulator is an XMPP server on a TLS socket. It accepts the SASL
+ * PLAIN login of {@link CcsClient#connect()}, binds a resource and then
+ * answers every downstream message with an ack or a nack after a random
+ * latency. It can also announce CONNECTION_DRAINING now and then, and it
+ * can send upstream messages with the REGISTER, ECHO and MESSAGE actions
+ * at a fixed rate.
+ * <br>
+ * Unless a key store is set, a self-signed certificate is created with
+ * keytool on {@link #start()}. {@link #getClientSocketFactory()} returns
+ * a socket factory that trusts it, to be passed to
+ * {@link CcsClient#setSocketFactory(javax.net.SocketFactory)}.
+ * <br>
+ * All settings can be changed while the simulator is running.
+ */
+public class CcsSimulator {
+
+    public static final Logger logger = Logger.getLogger(CcsSimulator.class.getName());
+
+    private static final String ACTION_PREFIX = "com.grokkingandroid.sampleapp.samples.gcm.";
+    private static final String[] UPSTREAM_ACTIONS = {
+        ACTION_PREFIX + "REGISTER", ACTION_PREFIX + "ECHO", ACTION_PREFIX + "MESSAGE"};
+    private static final long UPSTREAM_TICK_MILLIS = 10;
+
+    private final AtomicInteger mSessionCount = new AtomicInteger();
+    private final AtomicLong mUpstreamCount = new AtomicLong();
+    private final Set<SimulatedSession> mSessions = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder mDownstream = new LongAdder();
+    private final LongAdder mAcked = new LongAdder();
+    private final LongAdder mNacked = new LongAdder();
+    private final LongAdder mWindowViolations = new LongAdder();
+    private final LongAdder mUpstreamSent = new LongAdder();
+    private final LongAdder mUpstreamAcked = new LongAdder();
+    private final LongAdder mUpstreamNacked = new LongAdder();
+    private final LongAdder mDrainings = new LongAdder();
+    private final LongAdder mOutages = new LongAdder();
+
+    private int mPort = 0;
+    private File mKeyStoreFile;
+    private char[] mKeyStorePassword;
+    private volatile String mApiKey;
+    private volatile long mMinAckLatencyMillis = 5;
+    private volatile long mMaxAckLatencyMillis = 20;
+    private volatile double mNackRate = 0;
+    private volatile List<String> mNackErrors = Arrays.asList(
+            RetryScheduler.ERROR_SERVICE_UNAVAILABLE,
+            RetryScheduler.ERROR_DEVICE_MESSAGE_RATE_EXCEEDED,
+            FeedbackProcessor.ERROR_DEVICE_UNREGISTERED,
+            FeedbackProcessor.ERROR_BAD_REGISTRATION);
+    private volatile double mCanonicalRate = 0;
+    private volatile int mWindowSize = DownstreamPipeline.DEFAULT_WINDOW_SIZE;
+    private volatile long mDrainingIntervalMillis = 0;
+    private volatile long mDrainingCloseDelayMillis = 5000;
+    private volatile long mOutageIntervalMillis = 0;
+    private volatile long mOutageDurationMillis = 5000;
+    private volatile double mUpstreamRate = 0;
+    private volatile int mDeviceCount = 1000;
+
+    private KeyStore mKeyStore;
+    private SSLContext mServerContext;
+    private volatile ServerSocket mServerSocket;
+    private ScheduledExecutorService mScheduler;
+    private long mLastDrainingMillis;
+    private long mLastOutageMillis;
+    private double mUpstreamCarry;
+
+    /**
+     * The port to listen on. 0 (the default) picks a free port, see
+     * {@link #getPort()}. Must be called before {@link #start()}.
+     */
+    public void setPort(int port) {
+        mPort = port;
+    }
+
+    /**
+     * Uses the key and certificate of a PKCS12 key store instead of a
+     * generated one. Must be called before {@link #start()}.
+     */
+    public void setKeyStore(File keyStoreFile, char[] password) {
+        mKeyStoreFile = keyStoreFile;
+        mKeyStorePassword = password;
+    }
+
+    /**
+     * Only accepts logins with this api key. If null (the default), any
+     * login is accepted.
+     */
+    public void setApiKey(String apiKey) {
+        mApiKey = apiKey;
+    }
+
+    /**
+     * Acks and nacks are sent after a random delay between min and max.
+     */
+    public void setAckLatency(long minMillis, long maxMillis) {
+        if (minMillis < 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("Invalid latency: " + minMillis + " - " + maxMillis);
+        }
+        mMinAckLatencyMillis = minMillis;
+        mMaxAckLatencyMillis = maxMillis;
+    }
+
+    /**
+     * @param nackRate The share of downstream messages to nack, between
+     * 0 and 1.
+     * @param errors The error codes to pick from at random.
+     */
+    public void setNackRate(double nackRate, String... errors) {
+        mNackRate = nackRate;
+        if (errors.length > 0) {
+            mNackErrors = Arrays.asList(errors);
+        }
+    }
+
+    /**
+     * The share of acks that carry a canonical registration id.
+     */
+    public void setCanonicalRate(double canonicalRate) {
+        mCanonicalRate = canonicalRate;
+    }
+
+    /**
+     * The number of unacked messages a connection may have. Messages
+     * above it are still acked, but counted as window violations.
+     */
+    public void setWindowSize(int windowSize) {
+        mWindowSize = windowSize;
+    }
+
+    /**
+     * Drains one connection every intervalMillis. The connection is closed
+     * closeDelayMillis later, or earlier if all its messages are acked.
+     * An interval of 0 (the default) turns draining off.
+     */
+    public void setDraining(long intervalMillis, long closeDelayMillis) {
+        mDrainingIntervalMillis = intervalMillis;
+        mDrainingCloseDelayMillis = closeDelayMillis;
+    }
+
+    /**
+     * Simulates network outages every intervalMillis: all connections
+     * break without closing the stream, and the server socket is closed
+     * for durationMillis. An interval of 0 (the default) turns outages
+     * off.
+     */
+    public void setOutages(long intervalMillis, long durationMillis) {
+        mOutageIntervalMillis = intervalMillis;
+        mOutageDurationMillis = durationMillis;
+    }
+
+    /**
+     * Sends upstream messages with a random action at the given rate,
+     * from deviceCount different devices. A rate of 0 (the default) turns
+     * upstream messages off.
+     */
+    public void setUpstreamRate(double messagesPerSecond, int deviceCount) {
+        mUpstreamRate = messagesPerSecond;
+        mDeviceCount = deviceCount;
+    }
+
+    /**
+     * Opens the server socket and starts accepting connections.
+     */
+    public void start() throws IOException, GeneralSecurityException {
+        mKeyStore = loadKeyStore();
+        KeyManagerFactory keyManagers =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(mKeyStore, mKeyStorePassword);
+        mServerContext = SSLContext.getInstance("TLS");
+        mServerContext.init(keyManagers.getKeyManagers(), null, null);
+        listen(mPort);
+
+        mScheduler = Executors.newScheduledThreadPool(
+                Math.max(2, Runtime.getRuntime().availableProcessors() / 2), new ThreadFactory() {
+                    private final AtomicInteger mThreadCount = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ccs-simulator-" + mThreadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mLastDrainingMillis = System.currentTimeMillis();
+        mLastOutageMillis = mLastDrainingMillis;
+        mScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Simulator tick failed", e);
+                }
+            }
+        }, UPSTREAM_TICK_MILLIS, UPSTREAM_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        logger.log(Level.INFO, "CCS simulator listening on port {0}", getPort());
+    }
+
+    private void listen(int port) throws IOException {
+        final ServerSocket serverSocket = mServerContext.getServerSocketFactory().createServerSocket();
+        // the port is bound again after an outage
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+        mServerSocket = serverSocket;
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept(serverSocket);
+            }
+        }, "ccs-simulator-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Returns a socket factory that trusts the simulator's certificate.
+     */
+    public SSLSocketFactory getClientSocketFactory() throws GeneralSecurityException, IOException {
+        KeyStore trustStore = KeyStore.getInstance(KeyStore.getDefaultType());
+        trustStore.load(null, null);
+        for (String alias: Collections.list(mKeyStore.aliases())) {
+            Certificate certificate = mKeyStore.getCertificate(alias);
+            if (certificate != null) {
+                trustStore.setCertificateEntry(alias, certificate);
+            }
+        }
+        TrustManagerFactory trustManagers =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trustStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers.getTrustManagers(), null);
+        return context.getSocketFactory();
+    }
+
+    /**
+     * Closes all connections and the server socket.
+     */
+    public void stop() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Couldn't close server socket", e);
+        }
+        for (SimulatedSession session: mSessions) {
+            session.close();
+        }
+        mScheduler.shutdownNow();
+    }
+
+    private KeyStore loadKeyStore() throws IOException, GeneralSecurityException {
+        if (mKeyStoreFile == null) {
+            mKeyStorePassword = Long.toString(ThreadLocalRandom.current().nextLong(), 36).toCharArray();
+            mKeyStoreFile = generateKeyStore(mKeyStorePassword);
+        }
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        InputStream in = new FileInputStream(mKeyStoreFile);
+        try {
+            keyStore.load(in, mKeyStorePassword);
+        } finally {
+            in.close();
+        }
+        return keyStore;
+    }
+
+    /**
+     * Creates a self-signed certificate for localhost. There is no public
+     * API for that, thus keytool does the work.
+     */
+    private static File generateKeyStore(char[] password) throws IOException {
+        File dir = File.createTempFile("ccs-simulator", "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Couldn't create " + dir);
+        }
+        File keyStoreFile = new File(dir, "simulator.p12");
+        String keytool = System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "keytool";
+        Process process = new ProcessBuilder(keytool, "-genkeypair",
+                "-alias", "ccs-simulator", "-keyalg", "RSA", "-keysize", "2048",
+                "-validity", "3650", "-dname", "CN=localhost",
+                "-storetype", "PKCS12", "-keystore", keyStoreFile.getPath(),
+                "-storepass", new String(password), "-keypass", new String(password))
+                .redirectErrorStream(true)
+                .start();
+        try {
+            if (process.waitFor() != 0) {
+                throw new IOException("keytool failed with exit code " + process.exitValue());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating the key store", e);
+        }
+        keyStoreFile.deleteOnExit();
+        dir.deleteOnExit();
+        return keyStoreFile;
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    logger.log(Level.WARNING, "Couldn't accept connection", e);
+                }
+                continue;
+            }
+            SimulatedSession session =
+                    new SimulatedSession(this, mSessionCount.incrementAndGet(), socket);
+            mSessions.add(session);
+            Thread thread = new Thread(session, "ccs-simulator-session-" + session.getId());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    void onClosed(SimulatedSession session) {
+        mSessions.remove(session);
+    }
+
+    boolean isValidLogin(String username, String password) {
+        String apiKey = mApiKey;
+        return apiKey == null || apiKey.equals(password);
+    }
+
+    /**
+     * Handles the JSON of a message the client sent.
+     */
+    void onMessage(final SimulatedSession session, String json) {
+        Map message;
+        try {
+            message = (Map) JSONValue.parseWithException(json);
+        } catch (ParseException e) {
+            logger.log(Level.WARNING, "Invalid JSON from client: " + json, e);
+            return;
+        }
+        Object messageType = message.get("message_type");
+        if (InboundMessage.TYPE_ACK.equals(messageType)) {
+            mUpstreamAcked.increment();
+            return;
+        }
+        if (InboundMessage.TYPE_NACK.equals(messageType)) {
+            mUpstreamNacked.increment();
+            return;
+        }
+        mDownstream.increment();
+        final String messageId = (String) message.get("message_id");
+        final String to = (String) message.get("to");
+        if (session.isDraining()) {
+            mNacked.increment();
+            session.sendJson(receipt(InboundMessage.TYPE_NACK, messageId, to,
+                    RetryScheduler.ERROR_CONNECTION_DRAINING, null));
+            return;
+        }
+        if (session.messageReceived() > mWindowSize) {
+            mWindowViolations.increment();
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long delay = mMinAckLatencyMillis
+                + (long) (random.nextDouble() * (mMaxAckLatencyMillis - mMinAckLatencyMillis));
+        final String receipt;
+        if (random.nextDouble() < mNackRate) {
+            List<String> errors = mNackErrors;
+            receipt = receipt(InboundMessage.TYPE_NACK, messageId, to,
+                    errors.get(random.nextInt(errors.size())), null);
+            mNacked.increment();
+        } else {
+            String canonical = random.nextDouble() < mCanonicalRate ? "canonical-" + to : null;
+            receipt = receipt(InboundMessage.TYPE_ACK, messageId, to, null, canonical);
+            mAcked.increment();
+        }
+        try {
+            mScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    session.messageAnswered();
+                    session.sendJson(receipt);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the client flushed its last stanzas after stop()
+        }
+    }
+
+    private static String receipt(String messageType, String messageId, String from,
+            String error, String canonicalRegId) {
+        Map<String, Object> receipt = new LinkedHashMap<String, Object>();
+        receipt.put("message_type", messageType);
+        receipt.put("message_id", messageId);
+        receipt.put("from", from);
+        if (error != null) {
+            receipt.put("error", error);
+            receipt.put("error_description", "Simulated " + error);
+        }
+        if (canonicalRegId != null) {
+            receipt.put("registration_id", canonicalRegId);
+        }
+        return JSONValue.toJSONString(receipt);
+    }
+
+    private void tick() {
+        long drainingInterval = mDrainingIntervalMillis;
+        long now = System.currentTimeMillis();
+        if (drainingInterval > 0 && now - mLastDrainingMillis >= drainingInterval) {
+            mLastDrainingMillis = now;
+            drainOne();
+        }
+        long outageInterval = mOutageIntervalMillis;
+        if (outageInterval > 0 && now - mLastOutageMillis >= outageInterval) {
+            mLastOutageMillis = now;
+            startOutage();
+        }
+        mUpstreamCarry += mUpstreamRate * UPSTREAM_TICK_MILLIS / 1000;
+        while (mUpstreamCarry >= 1) {
+            mUpstreamCarry--;
+            sendUpstream();
+        }
+    }
+
+    private void drainOne() {
+        final SimulatedSession session = pickSession();
+        if (session == null) {
+            return;
+        }
+        mDrainings.increment();
+        session.drain();
+        Map<String, Object> control = new LinkedHashMap<String, Object>();
+        control.put("message_type", InboundMessage.TYPE_CONTROL);
+        control.put("control_type", RetryScheduler.ERROR_CONNECTION_DRAINING);
+        session.sendJson(JSONValue.toJSONString(control));
+        final long closeAt = System.currentTimeMillis() + mDrainingCloseDelayMillis;
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (session.getInFlightCount() == 0 || System.currentTimeMillis() >= closeAt) {
+                    session.close();
+                } else {
+                    mScheduler.schedule(this, 100, TimeUnit.MILLISECONDS);
+                }
+            }
+        }, 100, TimeUnit.MILLISECONDS);
+    }
+
+    private void startOutage() {
+        mOutages.increment();
+        logger.log(Level.INFO, "Outage for {0} ms", mOutageDurationMillis);
+        final int port = getPort();
+        try {
+            // connection attempts are refused until the outage is over
+            mServerSocket.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Couldn't close server socket", e);
+        }
+        for (SimulatedSession session: mSessions) {
+            session.abort();
+        }
+        mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listen(port);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "Couldn't listen on port " + port + " again", e);
+                }
+            }
+        }, mOutageDurationMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void sendUpstream() {
+        SimulatedSession session = pickSession();
+        if (session == null) {
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int device = random.nextInt(mDeviceCount);
+        String action = UPSTREAM_ACTIONS[random.nextInt(UPSTREAM_ACTIONS.length)];
+        Map<String, Object> data = new LinkedHashMap<String, Object>();
+        data.put("action", action);
+        if (action.endsWith("REGISTER")) {
+            data.put("account", "user" + (device % 100) + "@example.com");
+        } else {
+            data.put("message", "Simulated message " + mUpstreamCount.get());
+        }
+        Map<String, Object> upstream = new LinkedHashMap<String, Object>();
+        upstream.put("category", "com.grokkingandroid.sampleapp.samples.gcm");
+        upstream.put("data", data);
+        upstream.put("message_id", "up-" + mUpstreamCount.incrementAndGet());
+        upstream.put("from", "sim-device-" + device);
+        session.sendJson(JSONValue.toJSONString(upstream));
+        mUpstreamSent.increment();
+    }
+
+    private SimulatedSession pickSession() {
+        List<SimulatedSession> candidates = new ArrayList<SimulatedSession>();
+        for (SimulatedSession session: mSessions) {
+            if (session.isBound() && !session.isDraining()) {
+                candidates.add(session);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        return candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+    }
+
+    public int getSessionCount() {
+        return mSessions.size();
+    }
+
+    public long getDownstreamCount() {
+        return mDownstream.sum();
+    }
+
+    public long getAckedCount() {
+        return mAcked.sum();
+    }
+
+    public long getNackedCount() {
+        return mNacked.sum();
+    }
+
+    /**
+     * The number of messages received while the connection already had
+     * a full window of unacked messages.
+     */
+    public long getWindowViolationCount() {
+        return mWindowViolations.sum();
+    }
+
+    public long getUpstreamSentCount() {
+        return mUpstreamSent.sum();
+    }
+
+    public long getUpstreamAckedCount() {
+        return mUpstreamAcked.sum();
+    }
+
+    public long getUpstreamNackedCount() {
+        return mUpstreamNacked.sum();
+    }
+
+    public long getDrainingCount() {
+        return mDrainings.sum();
+    }
+
+    public long getOutageCount() {
+        return mOutages.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "CcsSimulator[sessions=" + getSessionCount() + ", downstream=" + getDownstreamCount()
+                + ", acked=" + getAckedCount() + ", nacked=" + getNackedCount()
+                + ", windowViolations=" + getWindowViolationCount()
+                + ", upstream=" + getUpstreamSentCount() + ", upstreamAcked=" + getUpstreamAckedCount()
+                + ", upstreamNacked=" + getUpstreamNackedCount()
+                + ", drainings=" + getDrainingCount() + ", outages=" + getOutageCount() + "]";
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Puts load on a {@link CcsClient} connected to a {@link CcsSimulator}
+ * and reports throughput and latency.
+ * <br>
+ * Options are given as key=value pairs, e.g.
+ * <code>java -jar target/simulator.jar connections=8 rate=20000 duration=60 nackRate=0.01</code>
+ * <ul>
+ * <li>connections: size of the connection pool (4)</li>
+ * <li>rate: messages per second, 0 for as fast as possible (0)</li>
+ * <li>duration: seconds to send for (30)</li>
+ * <li>outstanding: maximum number of messages not yet acked (10000)</li>
+ * <li>devices: number of distinct registration ids (100000)</li>
+ * <li>minLatency, maxLatency: ack latency of the simulator in ms (5, 20)</li>
+ * <li>nackRate: share of messages nacked by the simulator (0)</li>
+ * <li>drainingInterval: ms between CONNECTION_DRAINING events, 0 for none (0)</li>
+ * <li>upstreamRate: upstream messages per second (0)</li>
+ * <li>outageInterval: ms between network outages, 0 for none (0)</li>
+ * <li>outageDuration: ms an outage lasts (5000)</li>
+ * <li>interactiveShare: share of messages sent with {@link Priority#HIGH}
+ * among others sent with {@link Priority#BULK}, 0 to send all with
+ * {@link Priority#NORMAL} (0)</li>
+ * <li>reserved: number of connections reserved for non-bulk messages (0)</li>
+ * </ul>
+ * The ack latency is measured from writing a message to its ack. The
+ * end-to-end latency also includes the time spent waiting for a window
+ * slot, retries and the like.
+ */
+public class LoadGenerator {
+
+    /**
+     * Keeps the client's per-message logging from dominating the results.
+     * Held here, since loggers are only weakly referenced.
+     */
+    private static final Logger sPackageLogger =
+            Logger.getLogger(CcsClient.class.getPackage().getName());
+
+    private final Map<String, String> mOptions;
+    private final LatencyHistogram mEndToEnd = new LatencyHistogram();
+    private final LatencyHistogram mInteractiveEndToEnd = new LatencyHistogram();
+    private final LongAdder mAcked = new LongAdder();
+    private final LongAdder mNacked = new LongAdder();
+    private final LongAdder mFailed = new LongAdder();
+
+    public LoadGenerator(Map<String, String> options) {
+        mOptions = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg: args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        sPackageLogger.setLevel(Level.WARNING);
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    private long option(String key, long defaultValue) {
+        String value = mOptions.get(key);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    private double option(String key, double defaultValue) {
+        String value = mOptions.get(key);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    public void run() throws Exception {
+        int connections = (int) option("connections", 4);
+        double rate = option("rate", 0.0);
+        long durationNanos = TimeUnit.SECONDS.toNanos(option("duration", 30));
+        int maxOutstanding = (int) option("outstanding", 10000);
+        int devices = (int) option("devices", 100000);
+        double interactiveShare = option("interactiveShare", 0.0);
+
+        CcsSimulator simulator = new CcsSimulator();
+        simulator.setAckLatency(option("minLatency", 5), option("maxLatency", 20));
+        simulator.setNackRate(option("nackRate", 0.0));
+        simulator.setDraining(option("drainingInterval", 0), 5000);
+        simulator.setUpstreamRate(option("upstreamRate", 0.0), 1000);
+        simulator.setOutages(option("outageInterval", 0), option("outageDuration", 5000));
+        simulator.start();
+
+        CcsClient client = CcsClient.prepareClient("simulator", "simulator", false);
+        client.setServer("localhost", simulator.getPort());
+        client.setSocketFactory(simulator.getClientSocketFactory());
+        client.setPoolSize(connections);
+        client.setReservedConnections((int) option("reserved", 0));
+        client.connect();
+        System.out.println("Connected " + connections + " connections to port " + simulator.getPort());
+
+        MessageTemplate template = new MessageTemplate(
+                Collections.singletonMap("message", "Load test"), null, null, null);
+        final Semaphore outstanding = new Semaphore(maxOutstanding);
+        MetricsSnapshot previous = client.getMetrics().snapshot();
+        long start = System.nanoTime();
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long sent = 0;
+        while (System.nanoTime() - start < durationNanos) {
+            if (rate > 0) {
+                long due = start + (long) (sent * 1e9 / rate);
+                long wait = due - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            outstanding.acquire();
+            final long sendNanos = System.nanoTime();
+            final Priority priority;
+            if (interactiveShare <= 0) {
+                priority = Priority.NORMAL;
+            } else if ((long) ((sent + 1) * interactiveShare) > (long) (sent * interactiveShare)) {
+                priority = Priority.HIGH;
+            } else {
+                priority = Priority.BULK;
+            }
+            client.send(template, "device-" + (sent % devices), priority).whenComplete(
+                    new BiConsumer<String, Throwable>() {
+                        @Override
+                        public void accept(String messageId, Throwable error) {
+                            long nanos = System.nanoTime() - sendNanos;
+                            mEndToEnd.record(nanos);
+                            if (priority == Priority.HIGH) {
+                                mInteractiveEndToEnd.record(nanos);
+                            }
+                            if (error == null) {
+                                mAcked.increment();
+                            } else if (error instanceof NackException
+                                    || error.getCause() instanceof NackException) {
+                                mNacked.increment();
+                            } else {
+                                mFailed.increment();
+                            }
+                            outstanding.release();
+                        }
+                    });
+            sent++;
+            if (System.nanoTime() >= nextReport) {
+                MetricsSnapshot current = client.getMetrics().snapshot();
+                report(current, previous);
+                previous = current;
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+        if (!outstanding.tryAcquire(maxOutstanding, 30, TimeUnit.SECONDS)) {
+            System.out.println("Gave up waiting for " + (maxOutstanding - outstanding.availablePermits())
+                    + " outstanding messages");
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        MetricsSnapshot total = client.getMetrics().snapshot();
+        System.out.println();
+        System.out.println(String.format("Sent %d messages in %.1f s: %.0f acks/s", sent, seconds,
+                mAcked.sum() / seconds));
+        System.out.println("Acked " + mAcked.sum() + ", nacked " + mNacked.sum()
+                + ", failed " + mFailed.sum() + ", retries " + total.getRetryCount());
+        System.out.println("Ack latency:        " + total.getAckLatency());
+        System.out.println("End-to-end latency: " + mEndToEnd.snapshot());
+        if (interactiveShare > 0) {
+            System.out.println("High priority:      " + mInteractiveEndToEnd.snapshot());
+        }
+        System.out.println("Nacks: " + total.getNackCounts());
+        ConnectionSupervisor supervisor = client.getSupervisor();
+        System.out.println("Reconnects " + total.getReconnectCount() + ", failed "
+                + total.getReconnectFailureCount() + ", replayed " + supervisor.getReplayedCount()
+                + ", rejected " + supervisor.getRejectedCount());
+        long stanzas = 0;
+        long flushes = 0;
+        for (CcsConnection connection: client.getConnections()) {
+            stanzas += connection.getWriter().getStanzaCount();
+            flushes += connection.getWriter().getFlushCount();
+        }
+        System.out.println(String.format("Wrote %d stanzas in %d packets (%.1f per packet)",
+                stanzas, flushes, flushes == 0 ? 0.0 : (double) stanzas / flushes));
+        System.out.println(simulator);
+        simulator.stop();
+    }
+
+    private void report(MetricsSnapshot current, MetricsSnapshot previous) {
+        System.out.println(String.format("%8.0f msg/s  acked %10d  nacked %8d  p99 ack %7.2f ms  p99 e2e %7.2f ms",
+                current.getSendRateSince(previous), current.getAckedCount(), current.getNackedCount(),
+                current.getAckLatency().getMillisAtPercentile(99),
+                mEndToEnd.snapshot().getMillisAtPercentile(99)));
+    }
+}
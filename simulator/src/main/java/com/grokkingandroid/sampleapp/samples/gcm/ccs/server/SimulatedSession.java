@@ -0,0 +1,314 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * One client connection to the {@link CcsSimulator}.
+ * <br>
+ * Speaks just enough XMPP for Smack: the stream header, SASL PLAIN,
+ * resource binding and the session. After that every message stanza is
+ * handed to the simulator.
+ */
+class SimulatedSession implements Runnable {
+
+    private static final String STREAM_HEADER = "<?xml version='1.0' encoding='UTF-8'?>"
+            + "<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'"
+            + " from='" + CcsClient.GCM_SERVER + "' version='1.0' id='";
+    private static final String SASL_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-sasl";
+    private static final String BIND_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-bind";
+    private static final String SESSION_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-session";
+
+    private final CcsSimulator mSimulator;
+    private final int mId;
+    private final Socket mSocket;
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private Writer mWriter;
+    private String mUsername;
+    private volatile boolean mBound = false;
+    private volatile boolean mDraining = false;
+    private volatile boolean mClosed = false;
+
+    SimulatedSession(CcsSimulator simulator, int id, Socket socket) {
+        mSimulator = simulator;
+        mId = id;
+        mSocket = socket;
+    }
+
+    int getId() {
+        return mId;
+    }
+
+    boolean isBound() {
+        return mBound;
+    }
+
+    boolean isDraining() {
+        return mDraining;
+    }
+
+    void drain() {
+        mDraining = true;
+    }
+
+    int getInFlightCount() {
+        return mInFlight.get();
+    }
+
+    /**
+     * @return the number of unanswered messages, including this one.
+     */
+    int messageReceived() {
+        return mInFlight.incrementAndGet();
+    }
+
+    void messageAnswered() {
+        mInFlight.decrementAndGet();
+    }
+
+    @Override
+    public void run() {
+        try {
+            mWriter = new BufferedWriter(new OutputStreamWriter(mSocket.getOutputStream(), "UTF-8"));
+            Reader reader = new InputStreamReader(mSocket.getInputStream(), "UTF-8");
+
+            XmlPullParser parser = openStream(reader);
+            send(STREAM_HEADER + "sim-" + mId + "-1'><stream:features>"
+                    + "<mechanisms xmlns='" + SASL_NAMESPACE + "'><mechanism>PLAIN</mechanism>"
+                    + "</mechanisms></stream:features>");
+            if (!authenticate(parser)) {
+                send("<failure xmlns='" + SASL_NAMESPACE + "'><not-authorized/></failure>"
+                        + "</stream:stream>");
+                return;
+            }
+            send("<success xmlns='" + SASL_NAMESPACE + "'/>");
+
+            // the client restarts the stream after a successful login
+            parser = openStream(reader);
+            send(STREAM_HEADER + "sim-" + mId + "-2'><stream:features>"
+                    + "<bind xmlns='" + BIND_NAMESPACE + "'/>"
+                    + "<session xmlns='" + SESSION_NAMESPACE + "'/></stream:features>");
+            readStanzas(parser);
+        } catch (IOException e) {
+            if (!mClosed) {
+                CcsSimulator.logger.log(Level.FINE, "Session " + mId + " failed", e);
+            }
+        } catch (XmlPullParserException e) {
+            CcsSimulator.logger.log(Level.WARNING, "Session " + mId + " sent invalid XML", e);
+        } finally {
+            close();
+        }
+    }
+
+    private XmlPullParser openStream(Reader reader) throws XmlPullParserException, IOException {
+        XmlPullParser parser = new MXParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        parser.setInput(reader);
+        int event = parser.getEventType();
+        while (event != XmlPullParser.START_TAG || !"stream".equals(parser.getName())) {
+            if (event == XmlPullParser.END_DOCUMENT) {
+                throw new IOException("Stream closed before the stream header");
+            }
+            event = parser.next();
+        }
+        return parser;
+    }
+
+    private boolean authenticate(XmlPullParser parser) throws XmlPullParserException, IOException {
+        int event = parser.next();
+        while (event != XmlPullParser.START_TAG || !"auth".equals(parser.getName())) {
+            if (event == XmlPullParser.END_DOCUMENT) {
+                throw new IOException("Stream closed before the login");
+            }
+            event = parser.next();
+        }
+        if (!"PLAIN".equals(parser.getAttributeValue(null, "mechanism"))) {
+            return false;
+        }
+        // authzid \0 authcid \0 password
+        String[] credentials = new String(
+                Base64.getDecoder().decode(parser.nextText().trim()), "UTF-8").split("\0");
+        if (credentials.length < 2) {
+            return false;
+        }
+        mUsername = credentials[credentials.length - 2];
+        return mSimulator.isValidLogin(mUsername, credentials[credentials.length - 1]);
+    }
+
+    private void readStanzas(XmlPullParser parser) throws XmlPullParserException, IOException {
+        while (!mClosed) {
+            int event = parser.next();
+            if (event == XmlPullParser.END_DOCUMENT
+                    || (event == XmlPullParser.END_TAG && parser.getDepth() == 1)) {
+                return;
+            }
+            if (event != XmlPullParser.START_TAG || parser.getDepth() != 2) {
+                continue;
+            }
+            if ("iq".equals(parser.getName())) {
+                handleIq(parser);
+            } else if ("message".equals(parser.getName())) {
+                handleMessage(parser);
+            } else {
+                skip(parser);
+            }
+        }
+    }
+
+    private void handleIq(XmlPullParser parser) throws XmlPullParserException, IOException {
+        String id = parser.getAttributeValue(null, "id");
+        boolean bind = false;
+        String resource = "simulator";
+        int event = parser.next();
+        while (event != XmlPullParser.END_TAG || parser.getDepth() != 2) {
+            if (event == XmlPullParser.END_DOCUMENT) {
+                return;
+            }
+            if (event == XmlPullParser.START_TAG) {
+                if ("bind".equals(parser.getName())) {
+                    bind = true;
+                } else if ("resource".equals(parser.getName())) {
+                    resource = parser.nextText();
+                }
+            }
+            event = parser.next();
+        }
+        if (bind) {
+            String jid = mUsername.indexOf('@') < 0
+                    ? mUsername + "@" + CcsClient.GCM_SERVER : mUsername;
+            send("<iq type='result' id='" + StringUtils.escapeForXML(id) + "'>"
+                    + "<bind xmlns='" + BIND_NAMESPACE + "'><jid>"
+                    + StringUtils.escapeForXML(jid + "/" + resource) + "</jid></bind></iq>");
+            mBound = true;
+        } else {
+            // session and anything else: just say yes
+            send("<iq type='result' id='" + StringUtils.escapeForXML(id) + "'/>");
+        }
+    }
+
+    private void handleMessage(XmlPullParser parser) throws XmlPullParserException, IOException {
+        String json = null;
+        int event = parser.next();
+        while (event != XmlPullParser.END_TAG || parser.getDepth() != 2) {
+            if (event == XmlPullParser.END_DOCUMENT) {
+                return;
+            }
+            if (event == XmlPullParser.START_TAG && CcsClient.GCM_ELEMENT_NAME.equals(parser.getName())) {
+                json = parser.nextText();
+            }
+            event = parser.next();
+        }
+        if (json != null) {
+            mSimulator.onMessage(this, json);
+        }
+    }
+
+    private void skip(XmlPullParser parser) throws XmlPullParserException, IOException {
+        int depth = parser.getDepth();
+        int event = parser.next();
+        while (event != XmlPullParser.END_DOCUMENT
+                && (event != XmlPullParser.END_TAG || parser.getDepth() != depth)) {
+            event = parser.next();
+        }
+    }
+
+    /**
+     * Sends a JSON message in a GCM stanza.
+     */
+    void sendJson(String json) {
+        try {
+            send("<message><" + CcsClient.GCM_ELEMENT_NAME + " xmlns='" + CcsClient.GCM_NAMESPACE + "'>"
+                    + StringUtils.escapeForXML(json) + "</" + CcsClient.GCM_ELEMENT_NAME + "></message>");
+        } catch (IOException e) {
+            if (!mClosed) {
+                CcsSimulator.logger.log(Level.FINE, "Couldn't write to session " + mId, e);
+            }
+            close();
+        }
+    }
+
+    private void send(String xml) throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                throw new IOException("Session " + mId + " is closed");
+            }
+            mWriter.write(xml);
+            mWriter.flush();
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            try {
+                if (mWriter != null) {
+                    mWriter.write("</stream:stream>");
+                    mWriter.flush();
+                }
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            CcsSimulator.logger.log(Level.FINE, "Couldn't close session " + mId, e);
+        }
+        mSimulator.onClosed(this);
+    }
+
+    /**
+     * Breaks the connection without ending the stream, like a network
+     * failure would.
+     */
+    void abort() {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+        }
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            CcsSimulator.logger.log(Level.FINE, "Couldn't abort session " + mId, e);
+        }
+        mSimulator.onClosed(this);
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedSession-" + mId;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The targets for a message to one or more accounts, read lazily from
+ * the {@link RegistrationStore}.
+ * <br>
+ * If a notification key is stored for an account, the message is sent
+ * once to that key and CCS delivers it to all devices of the group.
+ * Otherwise each registration id of the account is a target of its own.
+ */
+public class AccountRecipients implements Iterable<String> {
+
+    private final RegistrationStore mDao;
+    private final Iterable<String> mAccounts;
+    private final boolean mUseNotificationKeys;
+
+    /**
+     * @param dao Where to look up the registration ids.
+     * @param accounts The accounts to send to.
+     * @param useNotificationKeys Whether to send to the notification key
+     * of an account instead of its devices, if one is stored.
+     */
+    public AccountRecipients(RegistrationStore dao, Iterable<String> accounts,
+            boolean useNotificationKeys) {
+        mDao = dao;
+        mAccounts = accounts;
+        mUseNotificationKeys = useNotificationKeys;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        final Iterator<String> accounts = mAccounts.iterator();
+        return new Iterator<String>() {
+            private Iterator<String> mCurrent = Collections.<String>emptyList().iterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!mCurrent.hasNext()) {
+                    if (!accounts.hasNext()) {
+                        return false;
+                    }
+                    mCurrent = targetsOf(accounts.next());
+                }
+                return true;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return mCurrent.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private Iterator<String> targetsOf(String account) {
+        if (mUseNotificationKeys) {
+            String notificationKey = mDao.getNotificationKey(account);
+            if (notificationKey != null) {
+                return Collections.singletonList(notificationKey).iterator();
+            }
+        }
+        return mDao.registrationIdsForAccount(account).iterator();
+    }
+}
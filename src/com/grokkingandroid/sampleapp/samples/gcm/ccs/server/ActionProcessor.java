@@ -0,0 +1,35 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+/**
+ * A {@link PayloadProcessor} that knows the action it handles. Used to
+ * plug in further actions via {@link java.util.ServiceLoader}: list the
+ * implementations in
+ * META-INF/services/com.grokkingandroid.sampleapp.samples.gcm.ccs.server.ActionProcessor
+ * and they are registered with the {@link ProcessorFactory} on startup.
+ * <br>
+ * Processors are shared between all messages and threads, so they
+ * must be stateless or thread safe.
+ */
+public interface ActionProcessor extends PayloadProcessor {
+
+    /**
+     * The value of the "action" key of the messages to handle.
+     */
+    String getAction();
+
+}
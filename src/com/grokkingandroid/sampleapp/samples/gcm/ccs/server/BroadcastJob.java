@@ -0,0 +1,375 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends one message to a (potentially huge) number of recipients in the
+ * background.
+ * <br>
+ * A feeder thread walks the recipients and cuts them into shards. The
+ * shards are sent by the workers of an executor, and each message goes
+ * to the least loaded connection. The number of messages handed to the
+ * connections but not yet acked or nacked is limited, and the messages
+ * are sent with {@link Priority#BULK}, so that a big broadcast neither
+ * floods the send queues nor starves other traffic.
+ * <br>
+ * A job can be paused, resumed and cancelled. Messages already handed
+ * to a connection are not affected by pause or cancel. The workers never
+ * block while the job is paused or at its limit, so jobs can share an
+ * executor with other work.
+ */
+public class BroadcastJob {
+
+    public static final Logger logger = Logger.getLogger(BroadcastJob.class.getName());
+
+    public static final int DEFAULT_SHARD_SIZE = 1000;
+    public static final int DEFAULT_MAX_OUTSTANDING = 10000;
+
+    private static final AtomicInteger sJobCount = new AtomicInteger();
+
+    private final CcsClient mClient;
+    private final MessageTemplate mTemplate;
+    private final Iterable<String> mRecipients;
+    private final Executor mExecutor;
+    private final int mShardSize;
+    private final Semaphore mOutstandingMessages;
+    private final Semaphore mOutstandingShards;
+
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mAcked = new AtomicLong();
+    private final AtomicLong mNacked = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    /**
+     * Shards and messages that have not finished yet, plus one for the
+     * feeder. The job is done when this drops to zero.
+     */
+    private final AtomicLong mOpen = new AtomicLong(1);
+    private final CompletableFuture<BroadcastJob> mCompletion = new CompletableFuture<BroadcastJob>();
+
+    /**
+     * Shards that can't go on because the job is paused or too many
+     * messages are outstanding. They are submitted again on resume() or
+     * when a message completes.
+     */
+    private final Queue<ShardTask> mParked = new ConcurrentLinkedQueue<ShardTask>();
+    private volatile boolean mPaused = false;
+    private volatile boolean mCancelled = false;
+
+    private final BiConsumer<String, Throwable> mOutcome = new BiConsumer<String, Throwable>() {
+        @Override
+        public void accept(String messageId, Throwable error) {
+            if (error == null) {
+                mAcked.incrementAndGet();
+            } else if (error instanceof NackException) {
+                mNacked.incrementAndGet();
+            } else {
+                mFailed.incrementAndGet();
+            }
+            mOutstandingMessages.release();
+            wakeOne();
+            finishOne();
+        }
+    };
+
+    /**
+     * @param client The client to send the messages with.
+     * @param template The message to send.
+     * @param recipients The registration ids to send to. Only iterated once,
+     * on the feeder thread.
+     * @param executor Runs the shards.
+     * @param parallelism How many shards may run at the same time.
+     * @param shardSize The number of recipients per shard.
+     * @param maxOutstanding The maximum number of messages handed to the
+     * connections but not yet acked or nacked.
+     */
+    public BroadcastJob(CcsClient client, MessageTemplate template, Iterable<String> recipients,
+            Executor executor, int parallelism, int shardSize, int maxOutstanding) {
+        mClient = client;
+        mTemplate = template;
+        mRecipients = recipients;
+        mExecutor = executor;
+        mShardSize = shardSize;
+        mOutstandingMessages = new Semaphore(maxOutstanding);
+        mOutstandingShards = new Semaphore(Math.max(1, parallelism) * 2);
+    }
+
+    /**
+     * Starts the feeder thread. Returns immediately.
+     */
+    public BroadcastJob start() {
+        Thread feeder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                feed();
+            }
+        }, "ccs-broadcast-" + sJobCount.incrementAndGet());
+        feeder.setDaemon(true);
+        feeder.start();
+        return this;
+    }
+
+    private void feed() {
+        try {
+            Iterator<String> iterator = mRecipients.iterator();
+            while (iterator.hasNext() && !mCancelled) {
+                List<String> shard = new ArrayList<String>(mShardSize);
+                while (shard.size() < mShardSize && iterator.hasNext()) {
+                    shard.add(iterator.next());
+                }
+                mOutstandingShards.acquire();
+                submit(shard);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            mCancelled = true;
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Broadcast aborted", e);
+            mCancelled = true;
+        } finally {
+            finishOne();
+        }
+    }
+
+    private void submit(List<String> shard) {
+        mOpen.incrementAndGet();
+        ShardTask task = new ShardTask(shard);
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends the messages of one shard. Rather than blocking a thread of
+     * the (possibly shared) executor while the job is paused or while too
+     * many messages are outstanding, a shard parks itself and gives the
+     * thread back. It is submitted again once it can go on.
+     */
+    private class ShardTask implements Runnable {
+
+        private final List<String> mShard;
+        /**
+         * The next recipient. Only used by the thread running the task.
+         */
+        private int mNext = 0;
+
+        ShardTask(List<String> shard) {
+            mShard = shard;
+        }
+
+        @Override
+        public void run() {
+            while (mNext < mShard.size() && !mCancelled) {
+                if (mPaused || !mOutstandingMessages.tryAcquire()) {
+                    if (park()) {
+                        return;
+                    }
+                } else {
+                    send(mShard.get(mNext++));
+                }
+            }
+            finish();
+        }
+
+        /**
+         * @return false if the shard may go on right away after all.
+         */
+        private boolean park() {
+            mParked.add(this);
+            // resume() or a completed message might have come before the add
+            if ((mCancelled || !mPaused && mOutstandingMessages.availablePermits() > 0)
+                    && mParked.remove(this)) {
+                return false;
+            }
+            return true;
+        }
+
+        void resubmit() {
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                logger.log(Level.WARNING, "Couldn't resume a broadcast shard", e);
+                abort();
+            }
+        }
+
+        /**
+         * Counts the recipients not sent to as failed.
+         */
+        void abort() {
+            mFailed.addAndGet(mShard.size() - mNext);
+            finish();
+        }
+
+        private void finish() {
+            mOutstandingShards.release();
+            finishOne();
+        }
+    }
+
+    private void send(String to) {
+        mOpen.incrementAndGet();
+        // counted before, since the message might complete right away
+        mSent.incrementAndGet();
+        try {
+            mClient.send(mTemplate, to, Priority.BULK).whenComplete(mOutcome);
+        } catch (RuntimeException e) {
+            mSent.decrementAndGet();
+            logger.log(Level.WARNING, "Couldn't send broadcast message to " + to, e);
+            mOutcome.accept(null, e);
+        }
+    }
+
+    private void finishOne() {
+        if (mOpen.decrementAndGet() == 0) {
+            mCompletion.complete(this);
+        }
+    }
+
+    private void wakeOne() {
+        ShardTask task = mParked.poll();
+        if (task != null) {
+            task.resubmit();
+        }
+    }
+
+    private void wakeAll() {
+        ShardTask task;
+        while ((task = mParked.poll()) != null) {
+            task.resubmit();
+        }
+    }
+
+    /**
+     * Stops handing further messages to the connections until
+     * {@link #resume()} is called.
+     */
+    public void pause() {
+        mPaused = true;
+    }
+
+    public void resume() {
+        mPaused = false;
+        wakeAll();
+    }
+
+    /**
+     * Stops the job. Messages already handed to a connection are still
+     * sent and counted.
+     */
+    public void cancel() {
+        mCancelled = true;
+        wakeAll();
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public boolean isDone() {
+        return mCompletion.isDone();
+    }
+
+    /**
+     * Completes when every message of the job has been acked, nacked or
+     * has failed (or when the job has been cancelled and all messages
+     * sent so far have completed).
+     */
+    public CompletableFuture<BroadcastJob> getCompletion() {
+        return mCompletion;
+    }
+
+    /**
+     * Blocks until the job is done.
+     */
+    public void await() throws InterruptedException {
+        try {
+            mCompletion.get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Blocks until the job is done or the timeout has elapsed.
+     * @return whether the job is done.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            mCompletion.get(timeout, unit);
+            return true;
+        } catch (TimeoutException e) {
+            return false;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * The number of messages handed to the connections.
+     */
+    public long getSentCount() {
+        return mSent.get();
+    }
+
+    public long getAckedCount() {
+        return mAcked.get();
+    }
+
+    public long getNackedCount() {
+        return mNacked.get();
+    }
+
+    /**
+     * The number of messages that could not be sent for other reasons
+     * than a nack, e.g. because no connection was available.
+     */
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BroadcastJob[sent=" + mSent.get() + ", acked=" + mAcked.get()
+                + ", nacked=" + mNacked.get() + ", failed=" + mFailed.get()
+                + (mCancelled ? ", cancelled" : mPaused ? ", paused" : "")
+                + (isDone() ? ", done" : "") + "]";
+    }
+}
@@ -33,16 +33,24 @@ import org.jivesoftware.smack.provider.PacketExtensionProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
 import org.jivesoftware.smack.util.StringUtils;
 import org.json.simple.JSONValue;
-import org.json.simple.parser.ParseException;
 import org.xmlpull.v1.XmlPullParser;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 
 /**
@@ -67,20 +75,69 @@ public class CcsClient {
     public static final String GCM_ELEMENT_NAME = "gcm";
     public static final String GCM_NAMESPACE = "google:mobile:data";
 
-    static Random random = new Random();
-    XMPPConnection connection;
-    ConnectionConfiguration config;
+    private static volatile MessageCodec sCodec = new StreamingJsonCodec();
 
     /// new: some additional instance and class members
     private static CcsClient sInstance = null;
     private String mApiKey = null;
     private String mProjectId = null;
     private boolean mDebuggable = false;
+    private int mPoolSize = 1;
+    private volatile int mReservedConnections = 0;
+    private long mCoalescingDelayMicros = StanzaCoalescer.DEFAULT_MAX_DELAY_MICROS;
+    private int mCoalescingMaxChars = StanzaCoalescer.DEFAULT_MAX_CHARS;
+    private String mHost = GCM_SERVER;
+    private int mPort = GCM_PORT;
+    private SocketFactory mSocketFactory = SSLSocketFactory.getDefault();
+    private final List<CcsConnection> mConnections = new CopyOnWriteArrayList<CcsConnection>();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final ScheduledExecutorService mMaintenance =
+            Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ccs-maintenance");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private final int mBroadcastParallelism = Runtime.getRuntime().availableProcessors();
+    private final ExecutorService mBroadcastExecutor =
+            Executors.newFixedThreadPool(mBroadcastParallelism, new ThreadFactory() {
+                private final AtomicInteger mThreadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ccs-broadcast-worker-"
+                            + mThreadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    private volatile UpstreamExecutor mUpstreamExecutor = new UpstreamExecutor();
+    private final FeedbackProcessor mFeedbackProcessor = new FeedbackProcessor();
+    private volatile UpstreamDeduplicator mDeduplicator = new UpstreamDeduplicator();
+    private final PacketTracer mPacketTracer = new PacketTracer();
+    private final CcsMetrics mMetrics = new CcsMetrics(mConnections);
+    private volatile RetryScheduler mRetryScheduler = createRetryScheduler(
+            RetryScheduler.DEFAULT_MAX_ATTEMPTS, RetryScheduler.DEFAULT_INITIAL_BACKOFF_MILLIS,
+            RetryScheduler.DEFAULT_MAX_BACKOFF_MILLIS);
+    private volatile ConnectionSupervisor mSupervisor = createSupervisor(
+            ConnectionSupervisor.DEFAULT_BACKLOG_CAPACITY,
+            ConnectionSupervisor.DEFAULT_INITIAL_BACKOFF_MILLIS,
+            ConnectionSupervisor.DEFAULT_MAX_BACKOFF_MILLIS);
+    private volatile RateLimiter mRateLimiter = new RateLimiter(new RetryScheduler.Resender() {
+        @Override
+        public void resend(PendingMessage msg) {
+            dispatch(msg);
+        }
+    });
+    private volatile boolean mStarted = false;
+    private volatile long mAckTimeoutMillis = DownstreamPipeline.DEFAULT_ACK_TIMEOUT_MILLIS;
 
     /**
      * XMPP Packet Extension for GCM Cloud Connection Server.
      */
-    class GcmPacketExtension extends DefaultPacketExtension {
+    static class GcmPacketExtension extends DefaultPacketExtension {
 
         String json;
 
@@ -132,6 +189,42 @@ public class CcsClient {
         }
     }
 
+    /**
+     * A &lt;message&gt; stanza whose XML has been written completely
+     * beforehand, e.g. by a {@link MessageCodec}.
+     */
+    static class GcmStanza extends Message {
+
+        private final String mXml;
+
+        public GcmStanza(String xml) {
+            mXml = xml;
+        }
+
+        @Override
+        public String toXML() {
+            return mXml;
+        }
+    }
+
+    /// new: encoding and decoding is pluggable
+    /**
+     * Sets the codec used by all helpers of this class, e.g.
+     * {@link #createJsonMessage(String, String, Map, String, Long, Boolean)}.
+     * Defaults to the {@link StreamingJsonCodec}, the {@link JsonSimpleCodec}
+     * works the way this class always used to.
+     */
+    public static void setCodec(MessageCodec codec) {
+        if (codec == null) {
+            throw new IllegalArgumentException("codec must not be null");
+        }
+        sCodec = codec;
+    }
+
+    public static MessageCodec getCodec() {
+        return sCodec;
+    }
+
     public static CcsClient getInstance() {
         if (sInstance == null) {
             throw new IllegalStateException("You have to prepare the client first");
@@ -153,6 +246,7 @@ public class CcsClient {
         mApiKey = apiKey;
         mProjectId = projectId;
         mDebuggable = debuggable;
+        mMetrics.registerMBean(CcsMetrics.DEFAULT_OBJECT_NAME);
     }
 
     private CcsClient() {
@@ -168,76 +262,512 @@ public class CcsClient {
                         return packet;
                     }
                 });
+        mMaintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    expireUnacked();
+                } catch (RuntimeException e) {
+                    // an exception would cancel all further runs
+                    logger.log(Level.WARNING, "Couldn't expire unacked messages", e);
+                }
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        mMaintenance.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                mMetrics.sample();
+            }
+        }, CcsMetrics.DEFAULT_SAMPLE_INTERVAL_MILLIS, CcsMetrics.DEFAULT_SAMPLE_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
     }
 
     /**
-     * Returns a random message id to uniquely identify a message.
+     * Returns a message id to uniquely identify a message.
      *
      * <p>
-     * Note: This is generated by a pseudo random number generator for
-     * illustration purpose, and is not guaranteed to be unique.
+     * Note: Despite its name this is no longer random. The id comes from
+     * the {@link MessageIdGenerator} and is guaranteed to be unique.
      *
      */
     public String getRandomMessageId() {
-        return "m-" + Long.toString(random.nextLong());
+        return MessageIdGenerator.getInstance().nextId();
+    }
+
+    /// new: support for more than one connection
+    /**
+     * Sets the number of connections {@link #connect()} opens. CCS allows
+     * up to 1000 connections per sender id, each with its own window of
+     * 100 unacked messages. Must be called before {@link #connect()}.
+     */
+    public void setPoolSize(int poolSize) {
+        if (poolSize < 1 || poolSize > 1000) {
+            throw new IllegalArgumentException("poolSize must be between 1 and 1000");
+        }
+        mPoolSize = poolSize;
+    }
+
+    /**
+     * Keeps the first connections of the pool free of {@link Priority#BULK}
+     * messages, so that other messages always find a window that no
+     * broadcast fills up. Bulk messages only use these connections if
+     * no other one is available.
+     */
+    public void setReservedConnections(int reservedConnections) {
+        if (reservedConnections < 0) {
+            throw new IllegalArgumentException("reservedConnections must not be negative");
+        }
+        mReservedConnections = reservedConnections;
+    }
+
+    /**
+     * Sets how stanzas are batched before they are written, see
+     * {@link StanzaCoalescer}. Applies to connections opened afterwards.
+     *
+     * @param maxDelayMicros How long a stanza may wait for others. Zero
+     * writes every stanza on its own.
+     * @param maxChars The size at which a batch is written right away.
+     */
+    public void setWriteCoalescing(long maxDelayMicros, int maxChars) {
+        if (maxDelayMicros < 0 || maxChars < 1) {
+            throw new IllegalArgumentException("maxDelayMicros must not be negative and maxChars must be positive");
+        }
+        mCoalescingDelayMicros = maxDelayMicros;
+        mCoalescingMaxChars = maxChars;
+    }
+
+    /**
+     * Connects to another server than CCS, e.g. to a local simulator for
+     * load tests. Must be called before {@link #connect()}.
+     */
+    public void setServer(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    /**
+     * Sets the factory for the TLS sockets to the server, e.g. one that
+     * trusts the certificate of a local simulator. Must be called before
+     * {@link #connect()}.
+     */
+    public void setSocketFactory(SocketFactory socketFactory) {
+        mSocketFactory = socketFactory;
+    }
+
+    public List<CcsConnection> getConnections() {
+        return Collections.unmodifiableList(mConnections);
+    }
+
+    /**
+     * Returns the processor that applies canonical ids and removes
+     * invalid registration ids reported by CCS.
+     */
+    public FeedbackProcessor getFeedbackProcessor() {
+        return mFeedbackProcessor;
+    }
+
+    /**
+     * Returns the counters and latencies of this client. They are also
+     * registered with JMX as {@link CcsMetrics#DEFAULT_OBJECT_NAME}.
+     */
+    public CcsMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Returns the tracer that logs the packets sent and received, e.g. to
+     * change its sample rate at runtime.
+     */
+    public PacketTracer getPacketTracer() {
+        return mPacketTracer;
+    }
+
+    /**
+     * Configures how nacked messages are retried. Messages still waiting
+     * for their backoff under the old policy are resent right away.
+     *
+     * @param maxAttempts How often a message is sent at most, including
+     * the first attempt.
+     * @param initialBackoffMillis Delay before the first retry.
+     * @param maxBackoffMillis Upper bound for the delay of later retries.
+     */
+    public void setRetryPolicy(int maxAttempts, long initialBackoffMillis, long maxBackoffMillis) {
+        RetryScheduler old = mRetryScheduler;
+        mRetryScheduler = createRetryScheduler(maxAttempts, initialBackoffMillis, maxBackoffMillis);
+        for (PendingMessage msg: old.shutdown()) {
+            dispatch(msg);
+        }
+    }
+
+    /**
+     * Sets how long a message may wait for its ack or nack. Afterwards its
+     * slot in the window is freed and the message is retried like one
+     * nacked with {@link RetryScheduler#ERROR_ACK_TIMEOUT}.
+     */
+    public void setAckTimeout(long ackTimeoutMillis) {
+        if (ackTimeoutMillis < 1) {
+            throw new IllegalArgumentException("ackTimeoutMillis must be positive");
+        }
+        mAckTimeoutMillis = ackTimeoutMillis;
+    }
+
+    private void expireUnacked() {
+        long timeoutMillis = mAckTimeoutMillis;
+        for (CcsConnection connection: mConnections) {
+            List<PendingMessage> expired = connection.getPipeline()
+                    .expire(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+            for (PendingMessage msg: expired) {
+                logger.log(Level.WARNING, "No ack for {0} on {1} within {2} ms",
+                        new Object[] {msg.getMessageId(), connection, timeoutMillis});
+                mMetrics.onNack(RetryScheduler.ERROR_ACK_TIMEOUT);
+                if (mRetryScheduler.retry(msg, RetryScheduler.ERROR_ACK_TIMEOUT)) {
+                    mMetrics.onRetry();
+                } else {
+                    msg.failed(new NackException(msg.getMessageId(),
+                            RetryScheduler.ERROR_ACK_TIMEOUT,
+                            "No ack within " + timeoutMillis + " ms"));
+                }
+            }
+        }
+    }
+
+    /**
+     * Configures how upstream messages are processed. Messages of the same
+     * device are always processed in order, messages of different devices
+     * in parallel. Should be called before {@link #connect()}: messages
+     * still waiting in the old executor are processed there, so a device
+     * might see its messages out of order while both run.
+     *
+     * @param threads The number of messages processed in parallel.
+     * @param capacity The number of messages that can be queued before
+     * the packet reader blocks.
+     * @param threadFactory Creates the workers. If null, platform threads
+     * are used.
+     */
+    public void setUpstreamConcurrency(int threads, int capacity, ThreadFactory threadFactory) {
+        UpstreamExecutor old = mUpstreamExecutor;
+        mUpstreamExecutor = new UpstreamExecutor(threads, capacity, threadFactory);
+        old.shutdown();
+    }
+
+    /**
+     * Sets for how long processed upstream messages are remembered, so
+     * that redelivered ones are acked without processing them again.
+     * Forgets all messages processed so far.
+     *
+     * @param ttlMillis How long a message is remembered at most.
+     * @param capacity The number of slots per generation. Memory use is
+     * 16 bytes per slot.
+     * @see UpstreamDeduplicator
+     */
+    public void setUpstreamDeduplication(long ttlMillis, int capacity) {
+        mDeduplicator = new UpstreamDeduplicator(ttlMillis, capacity);
+    }
+
+    public UpstreamDeduplicator getUpstreamDeduplicator() {
+        return mDeduplicator;
+    }
+
+    /**
+     * Sets how lost connections are replaced. Must be called before
+     * {@link #connect()}.
+     *
+     * @param backlogCapacity How many messages wait at most while no
+     * connection is available. Further messages fail right away.
+     * @param initialBackoffMillis Delay after the first failed attempt to
+     * open a replacement.
+     * @param maxBackoffMillis Upper bound for the delay of later attempts.
+     * @see ConnectionSupervisor
+     */
+    public void setReconnectPolicy(int backlogCapacity, long initialBackoffMillis,
+            long maxBackoffMillis) {
+        ConnectionSupervisor old = mSupervisor;
+        mSupervisor = createSupervisor(backlogCapacity, initialBackoffMillis, maxBackoffMillis);
+        old.shutdown();
+    }
+
+    /**
+     * Sets the rate limits for new messages. Retries and replays are not
+     * limited.
+     * <br>
+     * Messages delayed by the old limits are checked against the new
+     * ones again.
+     *
+     * @param deviceRate Messages per second per registration id, 0 for
+     * no limit.
+     * @param deviceBurst How many messages a device may get at once.
+     * @param globalRate Messages per second in total, 0 for no limit.
+     * @param globalBurst How many messages may be sent at once.
+     * @param maxDelayMillis Messages that would have to wait longer fail
+     * with DEVICE_MESSAGE_RATE_EXCEEDED.
+     * @see RateLimiter
+     */
+    public void setRateLimits(double deviceRate, int deviceBurst, double globalRate,
+            int globalBurst, long maxDelayMillis) {
+        RateLimiter old = mRateLimiter;
+        mRateLimiter = new RateLimiter(new RetryScheduler.Resender() {
+            @Override
+            public void resend(PendingMessage msg) {
+                dispatch(msg);
+            }
+        }, deviceRate, deviceBurst, globalRate, globalBurst, maxDelayMillis,
+                RateLimiter.DEFAULT_CAPACITY);
+        for (PendingMessage msg: old.shutdown()) {
+            mRateLimiter.submit(msg);
+        }
+    }
+
+    public RateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    public ConnectionSupervisor getSupervisor() {
+        return mSupervisor;
+    }
+
+    private ConnectionSupervisor createSupervisor(int backlogCapacity, long initialBackoffMillis,
+            long maxBackoffMillis) {
+        return new ConnectionSupervisor(new ConnectionSupervisor.Connector() {
+            @Override
+            public CcsConnection open() throws XMPPException {
+                return openConnection();
+            }
+        }, mConnections, new RetryScheduler.Resender() {
+            @Override
+            public void resend(PendingMessage msg) {
+                dispatch(msg);
+            }
+        }, mMetrics, backlogCapacity, initialBackoffMillis, maxBackoffMillis);
+    }
+
+    private RetryScheduler createRetryScheduler(int maxAttempts, long initialBackoffMillis,
+            long maxBackoffMillis) {
+        return new RetryScheduler(new RetryScheduler.Resender() {
+            @Override
+            public void resend(PendingMessage msg) {
+                dispatch(msg);
+            }
+        }, maxAttempts, initialBackoffMillis, maxBackoffMillis);
+    }
+
+    /**
+     * Returns the connection with the fewest messages in flight or queued.
+     * Draining connections are skipped, and so are the reserved ones for
+     * bulk messages as long as there are others.
+     *
+     * @return the connection or null if there is none available.
+     */
+    private CcsConnection selectConnection(Priority priority) {
+        CcsConnection best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        int reserved = priority == Priority.BULK ? mReservedConnections : 0;
+        for (CcsConnection candidate: mConnections) {
+            if (candidate.isDraining()) {
+                continue;
+            }
+            if (reserved > 0) {
+                reserved--;
+                continue;
+            }
+            int load = candidate.getLoad();
+            if (load < bestLoad) {
+                best = candidate;
+                bestLoad = load;
+            }
+        }
+        if (best == null && priority == Priority.BULK && mReservedConnections > 0) {
+            return selectConnection(Priority.NORMAL);
+        }
+        return best;
+    }
+
+    /**
+     * Queues a message on the least loaded connection that still takes
+     * messages. Without such a connection the message waits in the
+     * backlog of the {@link ConnectionSupervisor}.
+     */
+    private void dispatch(PendingMessage msg) {
+        // a connection might start to drain between selecting and sending
+        for (int i = 0; i <= mConnections.size(); i++) {
+            CcsConnection connection = selectConnection(msg.getPriority());
+            if (connection == null) {
+                break;
+            }
+            if (connection.send(msg)) {
+                return;
+            }
+        }
+        if (!mSupervisor.buffer(msg)) {
+            msg.failed(new IllegalStateException("No connection available for "
+                    + msg.getMessageId() + " and the backlog is full"));
+        }
     }
 
     /**
      * Sends a downstream GCM message.
+     * <br>
+     * The message is queued on the least loaded connection and sent as soon
+     * as that connection has room for another unacked message. The returned
+     * future completes when CCS acks or nacks the message.
+     * <br>
+     * Only the global rate limit applies to messages sent as JSON, since
+     * their recipient isn't known without parsing them.
+     * <br>
+     * The message is sent with {@link Priority#NORMAL}.
+     */
+    public CompletableFuture<String> send(String jsonRequest) {
+        String messageId = sCodec.decode(jsonRequest).getMessageId();
+        if (messageId == null) {
+            throw new IllegalArgumentException("message_id is missing: " + jsonRequest);
+        }
+        return send(messageId, jsonRequest);
+    }
+
+    /// new: avoids parsing the message just to get the message_id
+    /**
+     * Sends a downstream GCM message whose message_id is already known.
+     */
+    public CompletableFuture<String> send(String messageId, String jsonRequest) {
+        return send(messageId, jsonRequest, Priority.NORMAL);
+    }
+
+    /**
+     * Sends a downstream GCM message whose message_id is already known
+     * with the given priority.
+     */
+    public CompletableFuture<String> send(String messageId, String jsonRequest,
+            Priority priority) {
+        return sendStanza(messageId, sCodec.encodeStanza(jsonRequest), null, null, priority);
+    }
+
+    /**
+     * Sends a downstream GCM message. The stanza is encoded in one go,
+     * without creating the JSON first.
+     *
+     * @see #createJsonMessage(String, String, Map, String, Long, Boolean)
+     */
+    public CompletableFuture<String> send(String to, String messageId, Map<String, String> payload,
+            String collapseKey, Long timeToLive, Boolean delayWhileIdle) {
+        return send(to, messageId, payload, collapseKey, timeToLive, delayWhileIdle,
+                Priority.NORMAL);
+    }
+
+    /**
+     * Sends a downstream GCM message with the given priority. Use
+     * {@link Priority#HIGH} for messages a user is waiting for.
      */
-    public void send(String jsonRequest) {
-        Packet request = new GcmPacketExtension(jsonRequest).toPacket();
-        connection.sendPacket(request);
+    public CompletableFuture<String> send(String to, String messageId, Map<String, String> payload,
+            String collapseKey, Long timeToLive, Boolean delayWhileIdle, Priority priority) {
+        return sendStanza(messageId, sCodec.encodeMessageStanza(to, messageId, payload,
+                collapseKey, timeToLive, delayWhileIdle), to, collapseKey, priority);
+    }
+
+    private CompletableFuture<String> sendStanza(String messageId, String stanza, String to,
+            String collapseKey, Priority priority) {
+        if (!mStarted) {
+            throw new IllegalStateException("You have to connect the client first");
+        }
+        PendingMessage msg = new PendingMessage(messageId, stanza, to, collapseKey, priority);
+        mRateLimiter.submit(msg);
+        return msg.getFuture();
     }
 
     /// new: for sending messages to a list of recipients
     /**
      * Sends a message to multiple recipients. Kind of like the old
      * HTTP message with the list of regIds in the "registration_ids" field.
+     * <br>
+     * Returns immediately, the messages are sent in the background.
      */
-    public void sendBroadcast(Map<String, String> payload, String collapseKey,
+    public BroadcastJob sendBroadcast(Map<String, String> payload, String collapseKey,
             long timeToLive, Boolean delayWhileIdle, List<String> recipients) {
-        Map map = createAttributeMap(null, null, payload, collapseKey,
-                    timeToLive, delayWhileIdle);
-        for (String toRegId: recipients) {
-            String messageId = getRandomMessageId();
-            map.put("message_id", messageId);
-            map.put("to", toRegId);
-            String jsonRequest = createJsonMessage(map);
-            send(jsonRequest);
-        }
+        return sendBroadcast(new MessageTemplate(payload, collapseKey, timeToLive,
+                delayWhileIdle), recipients);
     }
-    
-    /// new: customized version of the standard handleIncomingDateMessage method
+
     /**
-     * Handles an upstream data message from a device application.
+     * Sends a message to multiple recipients. The shared part of the
+     * message is encoded only once, in the template.
+     * <br>
+     * The messages are sent with {@link Priority#BULK}, thus other
+     * messages don't wait behind them.
+     * <br>
+     * Returns immediately. Use the returned job to track the progress,
+     * to pause or cancel the broadcast or to wait for its end.
      */
-    public void handleIncomingDataMessage(CcsMessage msg) {
-        if (msg.getPayload().get("action") != null) {
-            PayloadProcessor processor = ProcessorFactory.getProcessor(msg.getPayload().get("action"));
-            processor.handleMessage(msg);
-        }   
+    public BroadcastJob sendBroadcast(MessageTemplate template, Iterable<String> recipients) {
+        return new BroadcastJob(this, template, recipients, mBroadcastExecutor,
+                mBroadcastParallelism, BroadcastJob.DEFAULT_SHARD_SIZE,
+                BroadcastJob.DEFAULT_MAX_OUTSTANDING).start();
     }
-    
-    /// new: was previously part of the previous method
+
+    /// new: fan-out to accounts, based on the registrations in the RegistrationStore
     /**
-     * 
+     * Sends a message to all devices of an account. If a notification key
+     * is stored for the account, the message is sent only once, to that
+     * key.
      */
-    private CcsMessage getMessage(Map<String, Object> jsonObject) {
-        String from = jsonObject.get("from").toString();
+    public BroadcastJob sendToAccount(MessageTemplate template, String account) {
+        return sendToAccounts(template, Collections.singletonList(account));
+    }
 
-        // PackageName of the application that sent this message.
-        String category = jsonObject.get("category").toString();
+    /**
+     * Sends a message to all devices of the given accounts. For accounts
+     * with a stored notification key the message is sent only once, to
+     * that key.
+     */
+    public BroadcastJob sendToAccounts(MessageTemplate template, Iterable<String> accounts) {
+        return sendBroadcast(template,
+                new AccountRecipients(DaoFactory.getRegistrationStore(), accounts, true));
+    }
 
-        // unique id of this message
-        String messageId = jsonObject.get("message_id").toString();
-        
-        @SuppressWarnings("unchecked")
-        Map<String, String> payload = (Map<String, String>) jsonObject.get("data");
+    /**
+     * Sends a message to every registered device.
+     */
+    public BroadcastJob sendToAll(MessageTemplate template) {
+        return sendBroadcast(template, DaoFactory.getRegistrationStore().registrationIds());
+    }
 
-        CcsMessage msg = new CcsMessage(from, category, messageId, payload);
+    /**
+     * Sends the message described by the template to one recipient.
+     */
+    public CompletableFuture<String> send(MessageTemplate template, String to) {
+        return send(template, to, Priority.NORMAL);
+    }
 
-        return msg;
+    /**
+     * Sends the message described by the template to one recipient with
+     * the given priority.
+     */
+    public CompletableFuture<String> send(MessageTemplate template, String to,
+            Priority priority) {
+        String messageId = getRandomMessageId();
+        return sendStanza(messageId, template.toStanza(to, messageId), to,
+                template.getCollapseKey(), priority);
+    }
+    
+    /// new: customized version of the standard handleIncomingDateMessage method
+    /**
+     * Handles an upstream data message from a device application.
+     * Messages with an unknown action are only logged and then acked
+     * like any other message.
+     */
+    public void handleIncomingDataMessage(CcsMessage msg) {
+        String action = msg.getPayload().get("action");
+        if (action != null) {
+            PayloadProcessor processor = ProcessorFactory.getProcessor(action);
+            if (processor == null) {
+                // nothing will ever handle it, thus it is acked all the same
+                logger.log(Level.WARNING, "No processor for action {0}", action);
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                processor.handleMessage(msg);
+            } finally {
+                mMetrics.onProcessed(action, System.nanoTime() - start);
+            }
+        }
     }
     
     /**
@@ -245,12 +775,14 @@ public class CcsClient {
      *
      * <p>
      * By default, it only logs a INFO message, but subclasses could override it
-     * to properly handle ACKS.
+     * to properly handle ACKS. Canonical registration ids have already
+     * been passed to the {@link FeedbackProcessor} when this is called.
      */
-    public void handleAckReceipt(Map<String, Object> jsonObject) {
-        String messageId = jsonObject.get("message_id").toString();
-        String from = jsonObject.get("from").toString();
-        logger.log(Level.INFO, "handleAckReceipt() from: " + from + ", messageId: " + messageId);
+    public void handleAckReceipt(InboundMessage ack) {
+        if (logger.isLoggable(Level.INFO)) {
+            logger.log(Level.INFO, "handleAckReceipt() from: {0}, messageId: {1}",
+                    new Object[] {ack.getFrom(), ack.getMessageId()});
+        }
     }
 
     /**
@@ -258,12 +790,14 @@ public class CcsClient {
      *
      * <p>
      * By default, it only logs a INFO message, but subclasses could override it
-     * to properly handle NACKS.
+     * to properly handle NACKS. Invalid registration ids have already
+     * been passed to the {@link FeedbackProcessor} when this is called.
      */
-    public void handleNackReceipt(Map<String, Object> jsonObject) {
-        String messageId = jsonObject.get("message_id").toString();
-        String from = jsonObject.get("from").toString();
-        logger.log(Level.INFO, "handleNackReceipt() from: " + from + ", messageId: " + messageId);
+    public void handleNackReceipt(InboundMessage nack) {
+        if (logger.isLoggable(Level.INFO)) {
+            logger.log(Level.INFO, "handleNackReceipt() from: {0}, messageId: {1}, error: {2}",
+                    new Object[] {nack.getFrom(), nack.getMessageId(), nack.getError()});
+        }
     }
 
     /**
@@ -280,8 +814,8 @@ public class CcsClient {
      */
     public static String createJsonMessage(String to, String messageId, Map<String, String> payload,
             String collapseKey, Long timeToLive, Boolean delayWhileIdle) {
-        return createJsonMessage(createAttributeMap(to, messageId, payload,
-                collapseKey, timeToLive, delayWhileIdle));
+        return sCodec.encodeMessage(to, messageId, payload, collapseKey, timeToLive,
+                delayWhileIdle);
     }
     
     public static String createJsonMessage(Map map) {
@@ -320,11 +854,7 @@ public class CcsClient {
      * @return JSON encoded ack.
      */
     public static String createJsonAck(String to, String messageId) {
-        Map<String, Object> message = new HashMap<String, Object>();
-        message.put("message_type", "ack");
-        message.put("to", to);
-        message.put("message_id", messageId);
-        return JSONValue.toJSONString(message);
+        return sCodec.encodeAck(to, messageId);
     }
 
     /// new: NACK added
@@ -338,32 +868,61 @@ public class CcsClient {
      * @return JSON encoded nack.
      */
     public static String createJsonNack(String to, String messageId) {
-        Map<String, Object> message = new HashMap<String, Object>();
-        message.put("message_type", "nack");
-        message.put("to", to);
-        message.put("message_id", messageId);
-        return JSONValue.toJSONString(message);
+        return sCodec.encodeNack(to, messageId);
     }
 
     /**
      * Connects to GCM Cloud Connection Server using the supplied credentials.
-     * @throws XMPPException
+     * Opens as many connections as set with {@link #setPoolSize(int)}.
+     * Connections that couldn't be opened are retried in the background
+     * by the {@link ConnectionSupervisor}.
+     * @throws XMPPException if not even one connection could be opened.
      */
     public void connect() throws XMPPException {
-        config = new ConnectionConfiguration(GCM_SERVER, GCM_PORT);
+        XMPPException failure = null;
+        int failed = 0;
+        for (int i = mConnections.size(); i < mPoolSize; i++) {
+            try {
+                mConnections.add(openConnection());
+                // upstream messages might arrive before the pool is complete
+                mStarted = true;
+            } catch (XMPPException e) {
+                failure = e;
+                failed++;
+            }
+        }
+        if (mConnections.isEmpty() && failure != null) {
+            // most likely wrong credentials, no point in retrying
+            throw failure;
+        }
+        for (int i = 0; i < failed; i++) {
+            mSupervisor.reconnect();
+        }
+    }
+
+    /// new: was previously part of connect()
+    /**
+     * Opens and authenticates one connection to CCS.
+     */
+    private CcsConnection openConnection() throws XMPPException {
+        ConnectionConfiguration config = new ConnectionConfiguration(mHost, mPort);
         config.setSecurityMode(SecurityMode.enabled);
-        config.setReconnectionAllowed(true);
+        // lost connections are replaced by the ConnectionSupervisor
+        config.setReconnectionAllowed(false);
         config.setRosterLoadedAtLogin(false);
         config.setSendPresence(false);
-        config.setSocketFactory(SSLSocketFactory.getDefault());
+        config.setSocketFactory(mSocketFactory);
 
         // NOTE: Set to true to launch a window with information about packets sent and received
         config.setDebuggerEnabled(mDebuggable);
 
         // -Dsmack.debugEnabled=true
-        XMPPConnection.DEBUG_ENABLED = true;
+        XMPPConnection.DEBUG_ENABLED = mDebuggable;
 
-        connection = new XMPPConnection(config);
+        final XMPPConnection connection = new XMPPConnection(config);
+        final CcsConnection ccsConnection = new CcsConnection(mConnectionCount.incrementAndGet(),
+                connection, mMetrics, new StanzaCoalescer(connection, mCoalescingDelayMicros,
+                        mCoalescingMaxChars));
         connection.connect();
 
         connection.addConnectionListener(new ConnectionListener() {
@@ -385,12 +944,16 @@ public class CcsClient {
 
             @Override
             public void connectionClosedOnError(Exception e) {
+                mMetrics.onConnectionError();
                 logger.log(Level.INFO, "Connection closed on error.");
+                mSupervisor.connectionLost(ccsConnection);
             }
 
             @Override
             public void connectionClosed() {
                 logger.info("Connection closed.");
+                // CCS might have ended the stream; ignored if we closed it
+                mSupervisor.connectionLost(ccsConnection);
             }
         });
 
@@ -399,18 +962,19 @@ public class CcsClient {
 
             @Override
             public void processPacket(Packet packet) {
-                logger.log(Level.INFO, "Received: " + packet.toXML());
+                mPacketTracer.received(ccsConnection, packet);
                 Message incomingMessage = (Message) packet;
                 GcmPacketExtension gcmPacket
                         = (GcmPacketExtension) incomingMessage.getExtension(GCM_NAMESPACE);
                 String json = gcmPacket.getJson();
                 try {
-                    @SuppressWarnings("unchecked")
-                    Map<String, Object> jsonMap
-                            = (Map<String, Object>) JSONValue.parseWithException(json);
-                    
-                    handleMessage(jsonMap);
-                } catch (ParseException e) {
+                    // acks and nacks take the fast path, everything else is fully decoded
+                    InboundMessage inbound = ReceiptScanner.scan(json);
+                    if (inbound == null) {
+                        inbound = sCodec.decode(json);
+                    }
+                    handleMessage(inbound, ccsConnection);
+                } catch (IllegalArgumentException e) {
                     logger.log(Level.SEVERE, "Error parsing JSON " + json, e);
                 } catch (Exception e) {
                     logger.log(Level.SEVERE, "Couldn't send echo.", e);
@@ -418,48 +982,164 @@ public class CcsClient {
             }
         }, new PacketTypeFilter(Message.class));
 
-        // Log all outgoing packets
+        // Trace outgoing packets
         connection.addPacketInterceptor(new PacketInterceptor() {
             @Override
             public void interceptPacket(Packet packet) {
-                logger.log(Level.INFO, "Sent: {0}", packet.toXML());
+                mPacketTracer.sent(ccsConnection, packet);
             }
         }, new PacketTypeFilter(Message.class));
 
-        connection.login(mProjectId + "@gcm.googleapis.com", mApiKey);
-        logger.log(Level.INFO, "logged in: " + mProjectId);
+        try {
+            connection.login(mProjectId + "@gcm.googleapis.com", mApiKey);
+        } catch (XMPPException e) {
+            ccsConnection.close();
+            throw e;
+        }
+        logger.log(Level.INFO, "logged in: " + mProjectId + " (" + ccsConnection + ")");
+        return ccsConnection;
     }
 
-    private void handleMessage(Map<String, Object> jsonMap) {
-        // present for "ack"/"nack", null otherwise
-        Object messageType = jsonMap.get("message_type");
+    private void handleMessage(InboundMessage inbound, CcsConnection ccsConnection) {
+        // present for "ack"/"nack"/"control", null otherwise
+        String messageType = inbound.getMessageType();
 
         if (messageType == null) {
-            CcsMessage msg = getMessage(jsonMap);
             // Normal upstream data message
-            try {
-                handleIncomingDataMessage(msg);
-                // Send ACK to CCS
-                String ack = createJsonAck(msg.getFrom(), msg.getMessageId());
-                send(ack);
-            }
-            catch (Exception e) {
-                // Send NACK to CCS
-                String nack = createJsonNack(msg.getFrom(), msg.getMessageId());
-                send(nack);
+            if (mDeduplicator.isDuplicate(inbound.getFrom(), inbound.getMessageId())) {
+                // already processed, CCS only missed our ack
+                sendReceipt(ccsConnection, createJsonAck(inbound.getFrom(),
+                        inbound.getMessageId()));
+                return;
             }
-        } else if ("ack".equals(messageType.toString())) {
+            final CcsMessage msg = inbound.toCcsMessage();
+            final CcsConnection receivedOn = ccsConnection;
+            // process off the packet reader thread, ordered per device
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    processUpstreamMessage(msg, receivedOn);
+                }
+            };
+            UpstreamExecutor executor;
+            do {
+                executor = mUpstreamExecutor;
+                // only fails if setUpstreamConcurrency() replaced it meanwhile
+            } while (!executor.execute(msg.getFrom(), task) && executor != mUpstreamExecutor);
+        } else if (InboundMessage.TYPE_ACK.equals(messageType)) {
             // Process Ack
-            handleAckReceipt(jsonMap);
-        } else if ("nack".equals(messageType.toString())) {
+            PendingMessage acked = ccsConnection.getPipeline().onAck(inbound.getMessageId());
+            if (acked != null) {
+                mMetrics.onAck(System.nanoTime() - acked.getSentNanos());
+            }
+            mFeedbackProcessor.onAck(inbound);
+            handleAckReceipt(inbound);
+        } else if (InboundMessage.TYPE_NACK.equals(messageType)) {
             // Process Nack
-            handleNackReceipt(jsonMap);
+            String messageId = inbound.getMessageId();
+            PendingMessage pending = ccsConnection.getPipeline().release(messageId);
+            mMetrics.onNack(inbound.getError());
+            if (pending != null) {
+                if (mRetryScheduler.retry(pending, inbound.getError())) {
+                    mMetrics.onRetry();
+                } else {
+                    pending.failed(new NackException(messageId, inbound.getError(),
+                            inbound.getErrorDescription()));
+                }
+            }
+            mFeedbackProcessor.onNack(inbound);
+            handleNackReceipt(inbound);
+        } else if (InboundMessage.TYPE_CONTROL.equals(messageType)) {
+            // Process control message
+            handleControlMessage(inbound, ccsConnection);
+        } else {
+            logger.log(Level.WARNING, "Unrecognized message type ({0})", messageType);
+        }
+    }
+
+    /// new: was previously part of handleMessage()
+    private void processUpstreamMessage(CcsMessage msg, CcsConnection ccsConnection) {
+        UpstreamDeduplicator deduplicator = mDeduplicator;
+        // a redelivery might have been queued before the original was done
+        if (deduplicator.isDuplicate(msg.getFrom(), msg.getMessageId())) {
+            sendReceipt(ccsConnection, createJsonAck(msg.getFrom(), msg.getMessageId()));
+            return;
+        }
+        mMetrics.onUpstream();
+        try {
+            handleIncomingDataMessage(msg);
+            deduplicator.processed(msg.getFrom(), msg.getMessageId());
+            // Send ACK to CCS
+            String ack = createJsonAck(msg.getFrom(), msg.getMessageId());
+            sendReceipt(ccsConnection, ack);
+        }
+        catch (Exception e) {
+            mMetrics.onUpstreamError();
+            // Send NACK to CCS
+            String nack = createJsonNack(msg.getFrom(), msg.getMessageId());
+            sendReceipt(ccsConnection, nack);
+        }
+    }
+
+    private void sendReceipt(CcsConnection ccsConnection, String receipt) {
+        try {
+            ccsConnection.sendReceipt(receipt);
+        } catch (IllegalStateException e) {
+            // the connection broke while processing, CCS redelivers the
+            // message on another one and the deduplicator acks it
+            logger.log(Level.FINE, "Couldn't send receipt on " + ccsConnection, e);
+        }
+    }
+
+    /// new: CCS announces the end of a connection with CONNECTION_DRAINING
+    private void handleControlMessage(InboundMessage inbound, CcsConnection ccsConnection) {
+        String controlType = inbound.getControlType();
+        if (RetryScheduler.ERROR_CONNECTION_DRAINING.equals(controlType)) {
+            handleConnectionDraining(ccsConnection);
         } else {
-            logger.log(Level.WARNING, "Unrecognized message type (%s)",
-                    messageType.toString());
+            logger.log(Level.WARNING, "Unrecognized control type ({0})", controlType);
         }
     }
 
+    /**
+     * Replaces a draining connection with a fresh one. The draining
+     * connection stops sending right away. Messages still queued on it
+     * are moved over once the replacement is logged in, messages in
+     * flight get their acks on the old connection. Once no more
+     * messages are in flight the old connection is closed.
+     */
+    private void handleConnectionDraining(final CcsConnection draining) {
+        logger.log(Level.INFO, "{0} is draining", draining);
+        mMetrics.onDraining();
+        // CCS closes the connection soon, so don't send anything else on it
+        final List<PendingMessage> queued = draining.getPipeline().drain();
+        mMaintenance.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSupervisor.reconnect();
+                for (PendingMessage msg: queued) {
+                    dispatch(msg);
+                }
+                closeWhenIdle(draining);
+            }
+        });
+    }
+
+    private void closeWhenIdle(final CcsConnection draining) {
+        if (draining.getPipeline().getInFlightCount() == 0) {
+            mConnections.remove(draining);
+            draining.close();
+            logger.log(Level.INFO, "{0} closed", draining);
+            return;
+        }
+        mMaintenance.schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeWhenIdle(draining);
+            }
+        }, 1, TimeUnit.SECONDS);
+    }
+
     public static void main(String[] args) {
         final String projectId = args[0];
         final String password = args[1];
@@ -470,7 +1150,8 @@ public class CcsClient {
         try {
             ccsClient.connect();
         } catch (XMPPException e) {
-            e.printStackTrace();
+            logger.log(Level.SEVERE, "Couldn't connect to CCS", e);
+            return;
         }
 
         // Send a sample hello downstream message to a device.
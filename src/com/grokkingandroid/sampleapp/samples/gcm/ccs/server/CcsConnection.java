@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import org.jivesoftware.smack.XMPPConnection;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One authenticated XMPP session with CCS together with its
+ * flow controlled send pipeline.
+ * <br>
+ * CCS allows up to 1000 connections per sender id. Each of those
+ * has its own window of 100 unacked messages. Acks and nacks always
+ * arrive on the connection the message was sent on, thus every
+ * connection keeps track of its own in-flight messages.
+ */
+public class CcsConnection {
+
+    private final int mId;
+    private final XMPPConnection mConnection;
+    private final StanzaCoalescer mWriter;
+    private final DownstreamPipeline mPipeline;
+    private final AtomicBoolean mClosed = new AtomicBoolean();
+
+    public CcsConnection(int id, XMPPConnection connection, CcsMetrics metrics) {
+        this(id, connection, metrics, new StanzaCoalescer(connection));
+    }
+
+    /**
+     * @param writer Writes all stanzas of this connection, see
+     * {@link StanzaCoalescer}.
+     */
+    public CcsConnection(int id, XMPPConnection connection, CcsMetrics metrics,
+            StanzaCoalescer writer) {
+        mId = id;
+        mConnection = connection;
+        mWriter = writer;
+        mPipeline = new DownstreamPipeline(writer, metrics);
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public XMPPConnection getConnection() {
+        return mConnection;
+    }
+
+    public DownstreamPipeline getPipeline() {
+        return mPipeline;
+    }
+
+    public StanzaCoalescer getWriter() {
+        return mWriter;
+    }
+
+    /**
+     * The number of messages this connection still has to deal with,
+     * i.e. messages in flight plus messages waiting for a window slot.
+     */
+    public int getLoad() {
+        return mPipeline.getInFlightCount() + mPipeline.getQueuedCount();
+    }
+
+    /**
+     * @return false if the connection is draining and didn't take the
+     * message.
+     */
+    public boolean send(PendingMessage msg) {
+        return mPipeline.enqueue(msg);
+    }
+
+    public boolean isDraining() {
+        return mPipeline.isDraining();
+    }
+
+    /**
+     * Sends an ACK or NACK for an upstream message. Those are not acked
+     * by CCS and thus bypass the flow control of the pipeline. They are
+     * still coalesced with the other stanzas of this connection.
+     */
+    public void sendReceipt(String jsonReceipt) {
+        mWriter.send(CcsClient.getCodec().encodeStanza(jsonReceipt));
+    }
+
+    public void close() {
+        if (!mClosed.compareAndSet(false, true)) {
+            return;
+        }
+        mPipeline.shutdown();
+        mWriter.close();
+        mConnection.disconnect();
+    }
+
+    /**
+     * Closes a connection that broke and hands back all messages that
+     * CCS hasn't acked or nacked on it, see
+     * {@link DownstreamPipeline#abandon()}.
+     * @return the messages or null if the connection has been closed
+     * before.
+     */
+    public List<PendingMessage> abandon() {
+        if (!mClosed.compareAndSet(false, true)) {
+            return null;
+        }
+        List<PendingMessage> unacked = mPipeline.abandon();
+        mWriter.close();
+        mConnection.disconnect();
+        return unacked;
+    }
+
+    public boolean isClosed() {
+        return mClosed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "CcsConnection-" + mId;
+    }
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters, gauges and latency histograms of a {@link CcsClient}.
+ * <br>
+ * Recording never takes a lock: counters are {@link LongAdder}s and
+ * latencies go into {@link LatencyHistogram}s. Gauges like the number
+ * of messages in flight are only computed when they are read.
+ * <br>
+ * Read the metrics with {@link #snapshot()} or via JMX, see
+ * {@link #registerMBean(String)}.
+ */
+public class CcsMetrics implements CcsMetricsMXBean {
+
+    public static final Logger logger = Logger.getLogger(CcsMetrics.class.getName());
+
+    public static final String DEFAULT_OBJECT_NAME =
+            "com.grokkingandroid.sampleapp.samples.gcm.ccs.server:type=CcsMetrics";
+    /**
+     * How often {@link CcsClient} calls {@link #sample()}.
+     */
+    public static final long DEFAULT_SAMPLE_INTERVAL_MILLIS = 10000;
+
+    private final Iterable<CcsConnection> mConnections;
+
+    private final LongAdder mSent = new LongAdder();
+    private final LongAdder mAcked = new LongAdder();
+    private final LongAdder mNacked = new LongAdder();
+    private final LongAdder mSendErrors = new LongAdder();
+    private final LongAdder mRetries = new LongAdder();
+    private final LongAdder mUpstream = new LongAdder();
+    private final LongAdder mUpstreamErrors = new LongAdder();
+    private final LongAdder mReconnects = new LongAdder();
+    private final LongAdder mReconnectFailures = new LongAdder();
+    private final LongAdder mConnectionErrors = new LongAdder();
+    private final LongAdder mDrainings = new LongAdder();
+    private final LatencyHistogram mAckLatency = new LatencyHistogram();
+    private final ConcurrentMap<String, LongAdder> mNackCounts =
+            new ConcurrentHashMap<String, LongAdder>();
+    private final ConcurrentMap<String, LatencyHistogram> mProcessorTimes =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * The two latest samples, the rates are computed from them. Guarded
+     * by mSampleLock.
+     */
+    private final Object mSampleLock = new Object();
+    private MetricsSnapshot mPreviousSample;
+    private MetricsSnapshot mLatestSample;
+
+    public CcsMetrics() {
+        this(Collections.<CcsConnection>emptyList());
+    }
+
+    /**
+     * @param connections The connections to report the in-flight and
+     * queued messages of. Read whenever the metrics are read.
+     */
+    public CcsMetrics(Iterable<CcsConnection> connections) {
+        mConnections = connections;
+        mLatestSample = snapshot();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     * @return false if that failed, e.g. because the name is taken.
+     */
+    public boolean registerMBean(String objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName(objectName));
+            return true;
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "Couldn't register metrics as " + objectName, e);
+            return false;
+        }
+    }
+
+    public void onSent() {
+        mSent.increment();
+    }
+
+    public void onSendError() {
+        mSendErrors.increment();
+    }
+
+    /**
+     * @param latencyNanos Time from writing the message to its ack.
+     */
+    public void onAck(long latencyNanos) {
+        mAcked.increment();
+        mAckLatency.record(latencyNanos);
+    }
+
+    public void onNack(String errorCode) {
+        mNacked.increment();
+        if (errorCode == null) {
+            errorCode = "UNKNOWN";
+        }
+        LongAdder count = mNackCounts.get(errorCode);
+        if (count == null) {
+            LongAdder newCount = new LongAdder();
+            count = mNackCounts.putIfAbsent(errorCode, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        count.increment();
+    }
+
+    public void onRetry() {
+        mRetries.increment();
+    }
+
+    public void onUpstream() {
+        mUpstream.increment();
+    }
+
+    public void onUpstreamError() {
+        mUpstreamErrors.increment();
+    }
+
+    /**
+     * @param action The action of the upstream message.
+     * @param nanos The time its processor took.
+     */
+    public void onProcessed(String action, long nanos) {
+        LatencyHistogram histogram = mProcessorTimes.get(action);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = mProcessorTimes.putIfAbsent(action, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    public void onReconnect() {
+        mReconnects.increment();
+    }
+
+    public void onReconnectFailure() {
+        mReconnectFailures.increment();
+    }
+
+    public void onConnectionError() {
+        mConnectionErrors.increment();
+    }
+
+    public void onDraining() {
+        mDrainings.increment();
+    }
+
+    /**
+     * Copies all metrics. Values recorded while copying might or might
+     * not show up.
+     */
+    public MetricsSnapshot snapshot() {
+        Map<String, LatencyHistogram.Snapshot> processorTimes =
+                new TreeMap<String, LatencyHistogram.Snapshot>();
+        for (Map.Entry<String, LatencyHistogram> entry: mProcessorTimes.entrySet()) {
+            processorTimes.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new MetricsSnapshot(System.currentTimeMillis(), mSent.sum(), mAcked.sum(),
+                mNacked.sum(), mSendErrors.sum(), mRetries.sum(), mUpstream.sum(),
+                mUpstreamErrors.sum(), mReconnects.sum(), mReconnectFailures.sum(),
+                mConnectionErrors.sum(), mDrainings.sum(), mAckLatency.snapshot(),
+                getNackCounts(), getInFlightByConnection(), getQueuedByConnection(),
+                processorTimes);
+    }
+
+    /**
+     * Takes a snapshot for the rates. Meant to be called at a fixed rate,
+     * {@link #getSendRate()} then covers the interval between the last
+     * two calls.
+     */
+    public void sample() {
+        MetricsSnapshot sample = snapshot();
+        synchronized (mSampleLock) {
+            mPreviousSample = mLatestSample;
+            mLatestSample = sample;
+        }
+    }
+
+    @Override
+    public long getSentCount() {
+        return mSent.sum();
+    }
+
+    @Override
+    public long getAckedCount() {
+        return mAcked.sum();
+    }
+
+    @Override
+    public long getNackedCount() {
+        return mNacked.sum();
+    }
+
+    @Override
+    public long getSendErrorCount() {
+        return mSendErrors.sum();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return mRetries.sum();
+    }
+
+    @Override
+    public long getUpstreamCount() {
+        return mUpstream.sum();
+    }
+
+    @Override
+    public long getUpstreamErrorCount() {
+        return mUpstreamErrors.sum();
+    }
+
+    @Override
+    public long getReconnectCount() {
+        return mReconnects.sum();
+    }
+
+    @Override
+    public long getReconnectFailureCount() {
+        return mReconnectFailures.sum();
+    }
+
+    @Override
+    public long getConnectionErrorCount() {
+        return mConnectionErrors.sum();
+    }
+
+    @Override
+    public long getDrainingCount() {
+        return mDrainings.sum();
+    }
+
+    @Override
+    public double getSendRate() {
+        MetricsSnapshot previous;
+        MetricsSnapshot latest;
+        synchronized (mSampleLock) {
+            previous = mPreviousSample;
+            latest = mLatestSample;
+        }
+        if (previous == null) {
+            // not sampled yet, so take the time since this was created
+            return snapshot().getSendRateSince(latest);
+        }
+        return latest.getSendRateSince(previous);
+    }
+
+    @Override
+    public double getAckLatencyMeanMillis() {
+        return mAckLatency.snapshot().getMeanNanos() / 1000000.0;
+    }
+
+    @Override
+    public double getAckLatencyP50Millis() {
+        return mAckLatency.snapshot().getMillisAtPercentile(50);
+    }
+
+    @Override
+    public double getAckLatencyP99Millis() {
+        return mAckLatency.snapshot().getMillisAtPercentile(99);
+    }
+
+    @Override
+    public double getAckLatencyP999Millis() {
+        return mAckLatency.snapshot().getMillisAtPercentile(99.9);
+    }
+
+    @Override
+    public double getAckLatencyMaxMillis() {
+        return mAckLatency.snapshot().getMaxNanos() / 1000000.0;
+    }
+
+    @Override
+    public Map<String, Long> getNackCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, LongAdder> entry: mNackCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Integer> getInFlightByConnection() {
+        Map<String, Integer> inFlight = new TreeMap<String, Integer>();
+        for (CcsConnection connection: mConnections) {
+            inFlight.put(connection.toString(), connection.getPipeline().getInFlightCount());
+        }
+        return inFlight;
+    }
+
+    @Override
+    public Map<String, Integer> getQueuedByConnection() {
+        Map<String, Integer> queued = new TreeMap<String, Integer>();
+        for (CcsConnection connection: mConnections) {
+            queued.put(connection.toString(), connection.getPipeline().getQueuedCount());
+        }
+        return queued;
+    }
+
+    @Override
+    public Map<String, Long> getProcessorCounts() {
+        Map<String, Long> counts = new TreeMap<String, Long>();
+        for (Map.Entry<String, LatencyHistogram> entry: mProcessorTimes.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().snapshot().getCount());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getProcessorP99Millis() {
+        Map<String, Double> times = new TreeMap<String, Double>();
+        for (Map.Entry<String, LatencyHistogram> entry: mProcessorTimes.entrySet()) {
+            times.put(entry.getKey(), entry.getValue().snapshot().getMillisAtPercentile(99));
+        }
+        return times;
+    }
+}
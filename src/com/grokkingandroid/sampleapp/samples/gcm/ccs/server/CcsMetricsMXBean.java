@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.Map;
+
+/**
+ * The JMX view of the {@link CcsMetrics}. Durations are in milliseconds.
+ */
+public interface CcsMetricsMXBean {
+
+    long getSentCount();
+
+    long getAckedCount();
+
+    long getNackedCount();
+
+    long getSendErrorCount();
+
+    long getRetryCount();
+
+    long getUpstreamCount();
+
+    long getUpstreamErrorCount();
+
+    long getReconnectCount();
+
+    long getReconnectFailureCount();
+
+    long getConnectionErrorCount();
+
+    long getDrainingCount();
+
+    /**
+     * Messages written to the connections per second, averaged over the
+     * last complete sampling interval, see {@link CcsMetrics#sample()}.
+     */
+    double getSendRate();
+
+    double getAckLatencyMeanMillis();
+
+    double getAckLatencyP50Millis();
+
+    double getAckLatencyP99Millis();
+
+    double getAckLatencyP999Millis();
+
+    double getAckLatencyMaxMillis();
+
+    Map<String, Long> getNackCounts();
+
+    Map<String, Integer> getInFlightByConnection();
+
+    Map<String, Integer> getQueuedByConnection();
+
+    Map<String, Long> getProcessorCounts();
+
+    Map<String, Double> getProcessorP99Millis();
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A FIFO queue of messages waiting to be sent, in which a message
+ * replaces a queued one to the same device with the same collapse key.
+ * <br>
+ * CCS would only deliver the latest of those messages to a device that
+ * is offline anyway. While messages pile up, e.g. because the window is
+ * full or after a reconnect, there is no point in sending the older
+ * ones. The newer message takes the place of the older one in the
+ * queue, so it doesn't lose the older one's turn. The older message
+ * completes the way the newer one does.
+ * <br>
+ * A message that is older than the queued one (e.g. a retry) is
+ * dropped in favor of the queued one instead.
+ */
+public class CollapsingQueue {
+
+    /**
+     * A place in the queue. Emptied when its message is taken.
+     */
+    private static class Slot extends AtomicReference<PendingMessage> {
+
+        private static final long serialVersionUID = 1L;
+
+        final String mKey;
+
+        Slot(PendingMessage msg, String key) {
+            super(msg);
+            mKey = key;
+        }
+    }
+
+    private final BlockingQueue<Slot> mSlots;
+    private final ConcurrentMap<String, Slot> mQueuedByKey = new ConcurrentHashMap<String, Slot>();
+    private final AtomicLong mCollapsed = new AtomicLong();
+
+    public CollapsingQueue() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param capacity The maximum number of queued messages. Messages
+     * that replace a queued one need no room.
+     */
+    public CollapsingQueue(int capacity) {
+        mSlots = new LinkedBlockingQueue<Slot>(capacity);
+    }
+
+    /**
+     * Queues a message unless the queue is full.
+     * @return false if the queue is full.
+     */
+    public boolean offer(PendingMessage msg) {
+        String key = msg.getCollapseId();
+        if (collapse(msg, key)) {
+            return true;
+        }
+        Slot slot = new Slot(msg, key);
+        if (!mSlots.offer(slot)) {
+            return false;
+        }
+        index(slot);
+        return true;
+    }
+
+    /**
+     * Queues a message. Blocks while the queue is full.
+     */
+    public void put(PendingMessage msg) throws InterruptedException {
+        String key = msg.getCollapseId();
+        if (collapse(msg, key)) {
+            return;
+        }
+        Slot slot = new Slot(msg, key);
+        mSlots.put(slot);
+        index(slot);
+    }
+
+    /**
+     * Takes the next message. Blocks while the queue is empty.
+     */
+    public PendingMessage take() throws InterruptedException {
+        while (true) {
+            PendingMessage msg = claim(mSlots.take());
+            if (msg != null) {
+                return msg;
+            }
+        }
+    }
+
+    /**
+     * Takes the next message.
+     * @return the message or null if the queue is empty.
+     */
+    public PendingMessage poll() {
+        Slot slot;
+        while ((slot = mSlots.poll()) != null) {
+            PendingMessage msg = claim(slot);
+            if (msg != null) {
+                return msg;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Takes all messages.
+     * @return the number of messages added to the collection.
+     */
+    public int drainTo(Collection<? super PendingMessage> messages) {
+        int count = 0;
+        PendingMessage msg;
+        while ((msg = poll()) != null) {
+            messages.add(msg);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Takes a message out of the queue, unless somebody else took it or
+     * it has been replaced.
+     * @return true if the message has been removed.
+     */
+    public boolean remove(PendingMessage msg) {
+        for (Iterator<Slot> slots = mSlots.iterator(); slots.hasNext(); ) {
+            Slot slot = slots.next();
+            if (slot.compareAndSet(msg, null)) {
+                slots.remove();
+                if (slot.mKey != null) {
+                    mQueuedByKey.remove(slot.mKey, slot);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The number of queued messages.
+     */
+    public int size() {
+        return mSlots.size();
+    }
+
+    /**
+     * The number of messages that were dropped because a newer one with
+     * the same recipient and collapse key was queued.
+     */
+    public long getCollapsedCount() {
+        return mCollapsed.get();
+    }
+
+    /**
+     * Puts the message into the slot of a queued one with the same key.
+     * @return false if there is no such message.
+     */
+    private boolean collapse(PendingMessage msg, String key) {
+        if (key == null) {
+            return false;
+        }
+        Slot slot = mQueuedByKey.get(key);
+        if (slot == null) {
+            return false;
+        }
+        while (true) {
+            PendingMessage queued = slot.get();
+            if (queued == null) {
+                // taken meanwhile
+                return false;
+            }
+            if (queued.getSequence() > msg.getSequence()) {
+                // the queued message is the newer one
+                mCollapsed.incrementAndGet();
+                msg.supersededBy(queued);
+                return true;
+            }
+            if (slot.compareAndSet(queued, msg)) {
+                mCollapsed.incrementAndGet();
+                queued.supersededBy(msg);
+                return true;
+            }
+        }
+    }
+
+    private void index(Slot slot) {
+        if (slot.mKey == null) {
+            return;
+        }
+        mQueuedByKey.put(slot.mKey, slot);
+        // the slot might have been taken before it was indexed
+        if (slot.get() == null) {
+            mQueuedByKey.remove(slot.mKey, slot);
+        }
+    }
+
+    private PendingMessage claim(Slot slot) {
+        PendingMessage msg = slot.getAndSet(null);
+        if (slot.mKey != null) {
+            mQueuedByKey.remove(slot.mKey, slot);
+        }
+        return msg;
+    }
+}
@@ -0,0 +1,855 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+
+/**
+ * A {@link RegistrationStore} for tens of millions of registrations.
+ * <br>
+ * {@link PseudoDao} keeps every registration id as a String in several
+ * hash sets and maps, which costs a few hundred bytes of heap per
+ * registration and gives the GC millions of objects to trace. This store
+ * keeps each registration id only once, as bytes in big byte arrays
+ * (the arena), and refers to it by an int id. The index from
+ * registration id to int id is a hash table of ints, and the devices of
+ * an account are a set of int ids. A registration id of 160 characters
+ * thus takes about 200 bytes plus its share of the account, and 20
+ * million registrations fit into a few GB of heap. Apart from the
+ * accounts, they are kept in a few thousand objects, which keeps full
+ * GCs short.
+ * <br>
+ * The registrations are spread over shards by the hash of the
+ * registration id. Each shard has a read-write lock of its own, so a
+ * change only blocks the readers and writers of one shard. Removed
+ * registration ids leave gaps in the arena of their shard. The shard
+ * compacts its arena once the gaps take more room than the live ids.
+ * <br>
+ * Iterating never fails, even while other threads change the data.
+ * Registration ids added or removed while iterating might or might not
+ * show up.
+ */
+public class CompactRegistrationStore implements RegistrationStore {
+
+    public static final int DEFAULT_SHARDS = 64;
+
+    /**
+     * The arena consists of pages of this size. A registration id is
+     * stored as two bytes of length followed by its UTF-8 bytes and never
+     * spans two pages. Its address is the page number followed by the
+     * offset within the page.
+     */
+    private static final int PAGE_BITS = 18;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int MAX_PAGES = 1 << (31 - PAGE_BITS);
+    private static final int MAX_LENGTH = 0xffff;
+    private static final int INITIAL_CAPACITY = 1024;
+    /**
+     * How many registration ids an iterator copies out of a shard while
+     * holding its lock.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    private final Shard[] mShards;
+    private final int mShardBits;
+    private final ConcurrentMap<String, Account> mAccounts =
+            new ConcurrentHashMap<String, Account>();
+    private final ConcurrentMap<String, String> mNotificationKeyNames =
+            new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, String> mNotificationKeys =
+            new ConcurrentHashMap<String, String>();
+
+    public CompactRegistrationStore() {
+        this(DEFAULT_SHARDS);
+    }
+
+    /**
+     * @param shards The number of shards, a power of two. More shards
+     * mean less contention, but every shard allocates its tables and
+     * arena pages on its own.
+     */
+    public CompactRegistrationStore(int shards) {
+        if (shards < 1 || shards > 1024 || Integer.bitCount(shards) != 1) {
+            throw new IllegalArgumentException("shards must be a power of two between 1 and 1024");
+        }
+        mShardBits = Integer.numberOfTrailingZeros(shards);
+        mShards = new Shard[shards];
+        for (int i = 0; i < shards; i++) {
+            mShards[i] = new Shard(mShardBits);
+        }
+    }
+
+    @Override
+    public void addRegistration(String regId, String accountName) {
+        byte[] token = encode(regId);
+        int hash = hash(regId);
+        int shardIndex = hash & (mShards.length - 1);
+        Shard shard = mShards[shardIndex];
+        long stamp = shard.mLock.writeLock();
+        try {
+            add(shardIndex, token, hash, accountName);
+        } finally {
+            shard.mLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes a registration id, e.g. because CCS reported that the app
+     * has been uninstalled.
+     */
+    @Override
+    public void removeRegistration(String regId) {
+        byte[] token = encode(regId);
+        int hash = hash(regId);
+        int shardIndex = hash & (mShards.length - 1);
+        Shard shard = mShards[shardIndex];
+        long stamp = shard.mLock.writeLock();
+        try {
+            remove(shardIndex, token, hash);
+        } finally {
+            shard.mLock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Replaces a registration id with the canonical id CCS reported for
+     * the device. The device keeps its account.
+     * <br>
+     * Both shards are write locked for the whole move, the one with the
+     * lower index first, so that no other change of either id can come
+     * in between.
+     */
+    @Override
+    public void updateRegistration(String oldRegId, String canonicalRegId) {
+        if (oldRegId.equals(canonicalRegId)) {
+            return;
+        }
+        byte[] oldToken = encode(oldRegId);
+        int oldHash = hash(oldRegId);
+        int oldIndex = oldHash & (mShards.length - 1);
+        byte[] canonicalToken = encode(canonicalRegId);
+        int canonicalHash = hash(canonicalRegId);
+        int canonicalIndex = canonicalHash & (mShards.length - 1);
+
+        Shard first = mShards[Math.min(oldIndex, canonicalIndex)];
+        Shard second = mShards[Math.max(oldIndex, canonicalIndex)];
+        long firstStamp = first.mLock.writeLock();
+        try {
+            long secondStamp = second == first ? 0 : second.mLock.writeLock();
+            try {
+                Shard shard = mShards[oldIndex];
+                int local = shard.find(oldToken, oldHash);
+                Account account = local < 0 ? null : shard.mAccountOf[local];
+                // add first, so that the account doesn't run empty meanwhile
+                add(canonicalIndex, canonicalToken, canonicalHash,
+                        account == null ? null : account.mName);
+                remove(oldIndex, oldToken, oldHash);
+            } finally {
+                if (second != first) {
+                    second.mLock.unlockWrite(secondStamp);
+                }
+            }
+        } finally {
+            first.mLock.unlockWrite(firstStamp);
+        }
+    }
+
+    /**
+     * Needs the write lock of the shard.
+     */
+    private void add(int shardIndex, byte[] token, int hash, String accountName) {
+        Shard shard = mShards[shardIndex];
+        int local = shard.find(token, hash);
+        if (local < 0) {
+            local = shard.insert(token, hash);
+        }
+        if (accountName == null) {
+            return;
+        }
+        Account previous = shard.mAccountOf[local];
+        if (previous != null && previous.mName.equals(accountName)) {
+            return;
+        }
+        int id = (local << mShardBits) | shardIndex;
+        if (previous != null) {
+            removeFromAccount(previous, id);
+        }
+        shard.mAccountOf[local] = addToAccount(accountName, id);
+    }
+
+    /**
+     * Needs the write lock of the shard.
+     */
+    private void remove(int shardIndex, byte[] token, int hash) {
+        Shard shard = mShards[shardIndex];
+        int local = shard.find(token, hash);
+        if (local < 0) {
+            return;
+        }
+        Account account = shard.mAccountOf[local];
+        if (account != null) {
+            removeFromAccount(account, (local << mShardBits) | shardIndex);
+        }
+        shard.delete(local);
+    }
+
+    private Account addToAccount(String accountName, final int id) {
+        return mAccounts.compute(accountName, new BiFunction<String, Account, Account>() {
+            @Override
+            public Account apply(String name, Account account) {
+                if (account == null) {
+                    account = new Account(name);
+                }
+                account.mMembers.add(id);
+                return account;
+            }
+        });
+    }
+
+    private void removeFromAccount(final Account account, final int id) {
+        mAccounts.computeIfPresent(account.mName, new BiFunction<String, Account, Account>() {
+            @Override
+            public Account apply(String name, Account current) {
+                account.mMembers.remove(id);
+                return current == account && account.mMembers.isEmpty() ? null : current;
+            }
+        });
+    }
+
+    /**
+     * Returns a snapshot of all registration ids.
+     */
+    @Override
+    public List<String> getAllRegistrationIds() {
+        List<String> regIds = new ArrayList<String>();
+        for (String regId: registrationIds()) {
+            regIds.add(regId);
+        }
+        return Collections.unmodifiableList(regIds);
+    }
+
+    /**
+     * Iterates over all registration ids, shard by shard. Each shard is
+     * locked only while a small batch of ids is decoded.
+     */
+    @Override
+    public Iterable<String> registrationIds() {
+        return new Iterable<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new RegistrationIdIterator();
+            }
+        };
+    }
+
+    /**
+     * Returns a snapshot of the registration ids of an account.
+     */
+    @Override
+    public List<String> getAllRegistrationIdsForAccount(String account) {
+        if (!mAccounts.containsKey(account)) {
+            return null;
+        }
+        List<String> regIds = new ArrayList<String>();
+        for (String regId: registrationIdsForAccount(account)) {
+            regIds.add(regId);
+        }
+        return Collections.unmodifiableList(regIds);
+    }
+
+    /**
+     * Iterates over the registration ids of an account. Only the int ids
+     * are copied up front, the ids are decoded one by one.
+     */
+    @Override
+    public Iterable<String> registrationIdsForAccount(String account) {
+        final Account members = mAccounts.get(account);
+        if (members == null) {
+            return Collections.emptyList();
+        }
+        return new Iterable<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new AccountIterator(members, members.mMembers.toArray());
+            }
+        };
+    }
+
+    @Override
+    public String getAccount(String regId) {
+        byte[] token = encode(regId);
+        int hash = hash(regId);
+        Shard shard = mShards[hash & (mShards.length - 1)];
+        long stamp = shard.mLock.readLock();
+        try {
+            int local = shard.find(token, hash);
+            if (local < 0 || shard.mAccountOf[local] == null) {
+                return null;
+            }
+            return shard.mAccountOf[local].mName;
+        } finally {
+            shard.mLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public String getNotificationKeyName(String accountName) {
+        return mNotificationKeyNames.get(accountName);
+    }
+
+    @Override
+    public void storeNotificationKeyName(String accountName, String notificationKeyName) {
+        mNotificationKeyNames.put(accountName, notificationKeyName);
+    }
+
+    /**
+     * Returns the notification key of the account's device group, if one
+     * has been stored. Messages sent to it reach all devices of the group.
+     */
+    @Override
+    public String getNotificationKey(String accountName) {
+        return mNotificationKeys.get(accountName);
+    }
+
+    @Override
+    public void storeNotificationKey(String accountName, String notificationKey) {
+        mNotificationKeys.put(accountName, notificationKey);
+    }
+
+    @Override
+    public Set<String> getAccounts() {
+        return Collections.unmodifiableSet(mAccounts.keySet());
+    }
+
+    /**
+     * The number of registration ids stored.
+     */
+    public int getRegistrationCount() {
+        int count = 0;
+        for (Shard shard: mShards) {
+            long stamp = shard.mLock.readLock();
+            try {
+                count += shard.mSize;
+            } finally {
+                shard.mLock.unlockRead(stamp);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The number of bytes allocated for the arenas of all shards.
+     */
+    public long getArenaBytes() {
+        long bytes = 0;
+        for (Shard shard: mShards) {
+            long stamp = shard.mLock.readLock();
+            try {
+                bytes += (long) shard.mPageCount * PAGE_SIZE;
+            } finally {
+                shard.mLock.unlockRead(stamp);
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] encode(String regId) {
+        byte[] token = regId.getBytes(StandardCharsets.UTF_8);
+        if (token.length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Registration id is too long: " + token.length
+                    + " bytes");
+        }
+        return token;
+    }
+
+    private static int hash(String regId) {
+        int hash = regId.hashCode() * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns the registration id with the given int id if it still
+     * belongs to the account, else null.
+     */
+    private String lookup(int id, Account account) {
+        Shard shard = mShards[id & (mShards.length - 1)];
+        int local = id >>> mShardBits;
+        // readers of a whole account would contend on the read lock, so
+        // try without it first
+        long stamp = shard.mLock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                String regId = shard.token(local, account);
+                if (shard.mLock.validate(stamp)) {
+                    return regId;
+                }
+            } catch (RuntimeException e) {
+                // read while a writer changed the shard, stamp is invalid
+            }
+        }
+        stamp = shard.mLock.readLock();
+        try {
+            return shard.token(local, account);
+        } finally {
+            shard.mLock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * An account and the int ids of its registrations. The ids are
+     * changed only within mAccounts.compute(), so an account that lost
+     * its last registration is removed before anyone adds to it again.
+     */
+    private static class Account {
+
+        final String mName;
+        final IntSet mMembers = new IntSet();
+
+        Account(String name) {
+            mName = name;
+        }
+    }
+
+    /**
+     * A thread safe set of non-negative ints. Open addressing with
+     * linear probing, the slots hold the value plus one, so that zero
+     * marks a free slot.
+     */
+    private static class IntSet {
+
+        private int[] mSlots = new int[4];
+        private int mSize = 0;
+
+        synchronized boolean add(int value) {
+            if ((mSize + 1) * 2 > mSlots.length) {
+                resize(mSlots.length * 2);
+            }
+            int mask = mSlots.length - 1;
+            int i = mix(value) & mask;
+            while (mSlots[i] != 0) {
+                if (mSlots[i] == value + 1) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            mSlots[i] = value + 1;
+            mSize++;
+            return true;
+        }
+
+        synchronized boolean remove(int value) {
+            int mask = mSlots.length - 1;
+            int i = mix(value) & mask;
+            while (mSlots[i] != value + 1) {
+                if (mSlots[i] == 0) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            // move following entries of the same run into the hole, so
+            // that no lookup stops early at it
+            int hole = i;
+            for (int j = (i + 1) & mask; mSlots[j] != 0; j = (j + 1) & mask) {
+                int home = mix(mSlots[j] - 1) & mask;
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    mSlots[hole] = mSlots[j];
+                    hole = j;
+                }
+            }
+            mSlots[hole] = 0;
+            mSize--;
+            if (mSize * 8 < mSlots.length && mSlots.length > 4) {
+                resize(mSlots.length / 2);
+            }
+            return true;
+        }
+
+        synchronized boolean isEmpty() {
+            return mSize == 0;
+        }
+
+        synchronized int[] toArray() {
+            int[] values = new int[mSize];
+            int count = 0;
+            for (int slot: mSlots) {
+                if (slot != 0) {
+                    values[count++] = slot - 1;
+                }
+            }
+            return values;
+        }
+
+        private void resize(int length) {
+            int[] old = mSlots;
+            mSlots = new int[length];
+            int mask = length - 1;
+            for (int slot: old) {
+                if (slot != 0) {
+                    int i = mix(slot - 1) & mask;
+                    while (mSlots[i] != 0) {
+                        i = (i + 1) & mask;
+                    }
+                    mSlots[i] = slot;
+                }
+            }
+        }
+
+        private static int mix(int value) {
+            int hash = value * 0x9e3779b9;
+            return hash ^ (hash >>> 16);
+        }
+    }
+
+    /**
+     * The registration ids with one hash range. All fields are guarded
+     * by mLock.
+     */
+    private static class Shard {
+
+        final StampedLock mLock = new StampedLock();
+        /**
+         * The low bits of the hashes select the shard, thus the index
+         * uses the hashes rotated by that many bits.
+         */
+        private final int mShardBits;
+        private final int mMaxIds;
+
+        // per local id: the address in the arena (-1 if unused), the hash
+        // and the account
+        private int[] mAddresses = new int[INITIAL_CAPACITY];
+        private int[] mHashes = new int[INITIAL_CAPACITY];
+        private Account[] mAccountOf = new Account[INITIAL_CAPACITY];
+        /**
+         * All local ids below have been used at some point.
+         */
+        private int mHighWater = 0;
+        private int[] mFree = new int[16];
+        private int mFreeCount = 0;
+
+        /**
+         * The hash index. Open addressing with linear probing, the slots
+         * hold the local id plus one, so that zero marks a free slot.
+         */
+        private int[] mTable = new int[INITIAL_CAPACITY * 2];
+        private int mSize = 0;
+
+        private byte[][] mPages = new byte[4][];
+        private int mPageCount = 0;
+        private int mPageOffset = 0;
+        private long mLiveBytes = 0;
+        private long mGarbageBytes = 0;
+
+        Shard(int shardBits) {
+            mShardBits = shardBits;
+            mMaxIds = Integer.MAX_VALUE >>> shardBits;
+        }
+
+        private int home(int hash) {
+            return Integer.rotateRight(hash, mShardBits) & (mTable.length - 1);
+        }
+
+        /**
+         * @return the local id of the registration id or -1.
+         */
+        int find(byte[] token, int hash) {
+            int mask = mTable.length - 1;
+            for (int i = home(hash); mTable[i] != 0; i = (i + 1) & mask) {
+                int local = mTable[i] - 1;
+                if (mHashes[local] == hash && matches(mAddresses[local], token)) {
+                    return local;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Adds a registration id that is not yet stored.
+         * @return its local id.
+         */
+        int insert(byte[] token, int hash) {
+            if ((mSize + 1) * 4L > mTable.length * 3L) {
+                rehash(mTable.length * 2);
+            }
+            int local;
+            if (mFreeCount > 0) {
+                local = mFree[--mFreeCount];
+            } else {
+                if (mHighWater == mMaxIds) {
+                    throw new IllegalStateException("Shard is full");
+                }
+                local = mHighWater++;
+                if (local == mAddresses.length) {
+                    int length = (int) Math.min((long) local + (local >> 1), mMaxIds);
+                    mAddresses = Arrays.copyOf(mAddresses, length);
+                    mHashes = Arrays.copyOf(mHashes, length);
+                    mAccountOf = Arrays.copyOf(mAccountOf, length);
+                }
+            }
+            mAddresses[local] = append(token, 0, token.length);
+            mHashes[local] = hash;
+            place(local);
+            mSize++;
+            return local;
+        }
+
+        void delete(int local) {
+            int mask = mTable.length - 1;
+            int i = home(mHashes[local]);
+            while (mTable[i] != local + 1) {
+                i = (i + 1) & mask;
+            }
+            // move following entries of the same run into the hole, so
+            // that no lookup stops early at it
+            int hole = i;
+            for (int j = (i + 1) & mask; mTable[j] != 0; j = (j + 1) & mask) {
+                int home = home(mHashes[mTable[j] - 1]);
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    mTable[hole] = mTable[j];
+                    hole = j;
+                }
+            }
+            mTable[hole] = 0;
+            mSize--;
+
+            int length = 2 + length(mAddresses[local]);
+            mLiveBytes -= length;
+            mGarbageBytes += length;
+            mAddresses[local] = -1;
+            mAccountOf[local] = null;
+            if (mFreeCount == mFree.length) {
+                mFree = Arrays.copyOf(mFree, mFreeCount * 2);
+            }
+            mFree[mFreeCount++] = local;
+            if (mGarbageBytes > PAGE_SIZE && mGarbageBytes > mLiveBytes) {
+                compact();
+            }
+        }
+
+        /**
+         * Decodes the registration id with the given local id.
+         * @return the registration id or null if the local id is unused.
+         */
+        String token(int local) {
+            int address = mAddresses[local];
+            if (address < 0) {
+                return null;
+            }
+            byte[] page = mPages[address >>> PAGE_BITS];
+            int offset = address & (PAGE_SIZE - 1);
+            return new String(page, offset + 2, length(address), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Decodes the registration id with the given local id if it
+         * belongs to the account.
+         * @return the registration id or null.
+         */
+        String token(int local, Account account) {
+            if (local >= mHighWater || mAccountOf[local] != account) {
+                return null;
+            }
+            return token(local);
+        }
+
+        private int length(int address) {
+            byte[] page = mPages[address >>> PAGE_BITS];
+            int offset = address & (PAGE_SIZE - 1);
+            return ((page[offset] & 0xff) << 8) | (page[offset + 1] & 0xff);
+        }
+
+        private boolean matches(int address, byte[] token) {
+            if (length(address) != token.length) {
+                return false;
+            }
+            byte[] page = mPages[address >>> PAGE_BITS];
+            int offset = (address & (PAGE_SIZE - 1)) + 2;
+            for (int i = 0; i < token.length; i++) {
+                if (page[offset + i] != token[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void place(int local) {
+            int mask = mTable.length - 1;
+            int i = home(mHashes[local]);
+            while (mTable[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            mTable[i] = local + 1;
+        }
+
+        private void rehash(int length) {
+            mTable = new int[length];
+            for (int local = 0; local < mHighWater; local++) {
+                if (mAddresses[local] >= 0) {
+                    place(local);
+                }
+            }
+        }
+
+        /**
+         * Copies bytes to the end of the arena, starting a new page if
+         * they don't fit into the current one.
+         * @return their address.
+         */
+        private int append(byte[] bytes, int offset, int length) {
+            int size = 2 + length;
+            if (mPageCount == 0 || mPageOffset + size > PAGE_SIZE) {
+                if (mPageCount > 0) {
+                    // the rest of the page stays unused
+                    mGarbageBytes += PAGE_SIZE - mPageOffset;
+                }
+                if (mPageCount == MAX_PAGES) {
+                    throw new IllegalStateException("Arena is full");
+                }
+                if (mPageCount == mPages.length) {
+                    mPages = Arrays.copyOf(mPages, mPageCount * 2);
+                }
+                mPages[mPageCount++] = new byte[PAGE_SIZE];
+                mPageOffset = 0;
+            }
+            byte[] page = mPages[mPageCount - 1];
+            page[mPageOffset] = (byte) (length >>> 8);
+            page[mPageOffset + 1] = (byte) length;
+            System.arraycopy(bytes, offset, page, mPageOffset + 2, length);
+            int address = ((mPageCount - 1) << PAGE_BITS) | mPageOffset;
+            mPageOffset += size;
+            mLiveBytes += size;
+            return address;
+        }
+
+        /**
+         * Copies the live registration ids to new pages, leaving out the
+         * gaps removed ones left behind.
+         */
+        private void compact() {
+            byte[][] pages = mPages;
+            mPages = new byte[4][];
+            mPageCount = 0;
+            mPageOffset = 0;
+            mLiveBytes = 0;
+            mGarbageBytes = 0;
+            for (int local = 0; local < mHighWater; local++) {
+                int address = mAddresses[local];
+                if (address >= 0) {
+                    byte[] page = pages[address >>> PAGE_BITS];
+                    int offset = address & (PAGE_SIZE - 1);
+                    int length = ((page[offset] & 0xff) << 8) | (page[offset + 1] & 0xff);
+                    mAddresses[local] = append(page, offset + 2, length);
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks the shards, copying a batch of registration ids at a time.
+     */
+    private class RegistrationIdIterator implements Iterator<String> {
+
+        private final List<String> mBatch = new ArrayList<String>(BATCH_SIZE);
+        private int mPosition = 0;
+        private int mShard = 0;
+        private int mNextLocal = 0;
+
+        @Override
+        public boolean hasNext() {
+            while (mPosition == mBatch.size()) {
+                if (mShard == mShards.length) {
+                    return false;
+                }
+                fill();
+            }
+            return true;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return mBatch.get(mPosition++);
+        }
+
+        private void fill() {
+            mBatch.clear();
+            mPosition = 0;
+            Shard shard = mShards[mShard];
+            long stamp = shard.mLock.readLock();
+            try {
+                while (mNextLocal < shard.mHighWater && mBatch.size() < BATCH_SIZE) {
+                    String regId = shard.token(mNextLocal++);
+                    if (regId != null) {
+                        mBatch.add(regId);
+                    }
+                }
+                if (mNextLocal >= shard.mHighWater) {
+                    mShard++;
+                    mNextLocal = 0;
+                }
+            } finally {
+                shard.mLock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Decodes the int ids of an account one by one, skipping those that
+     * have been removed from the account meanwhile.
+     */
+    private class AccountIterator implements Iterator<String> {
+
+        private final Account mAccount;
+        private final int[] mIds;
+        private int mPosition = 0;
+        private String mNext;
+
+        AccountIterator(Account account, int[] ids) {
+            mAccount = account;
+            mIds = ids;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (mNext == null && mPosition < mIds.length) {
+                mNext = lookup(mIds[mPosition++], mAccount);
+            }
+            return mNext != null;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            String next = mNext;
+            mNext = null;
+            return next;
+        }
+    }
+}
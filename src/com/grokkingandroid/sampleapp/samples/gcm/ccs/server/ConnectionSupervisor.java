@@ -0,0 +1,289 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps the connection pool of a {@link CcsClient} at its size and
+ * makes sure no message gets lost when a connection breaks.
+ * <br>
+ * When a connection is lost, all messages CCS hasn't acked or nacked
+ * on it are replayed on the other connections and a replacement is
+ * opened in the background, with exponential backoff if that fails.
+ * Several replacements are opened in parallel. While no connection is
+ * available, messages wait in a bounded backlog instead of failing or
+ * blocking the caller. The backlog is sent as soon as a connection is
+ * up again. It keeps only the latest message per device and collapse
+ * key, see {@link CollapsingQueue}.
+ * <br>
+ * Replayed messages might have reached CCS before the connection
+ * broke, so a device can get such a message twice. Use a collapse key
+ * where that matters.
+ */
+public class ConnectionSupervisor {
+
+    public static final Logger logger = Logger.getLogger(ConnectionSupervisor.class.getName());
+
+    public static final int DEFAULT_BACKLOG_CAPACITY = 100000;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 60000;
+
+    private static final int RECONNECT_THREADS = 4;
+
+    /**
+     * Opens and logs in one connection to CCS.
+     */
+    public interface Connector {
+        CcsConnection open() throws Exception;
+    }
+
+    private final Connector mConnector;
+    private final List<CcsConnection> mConnections;
+    private final RetryScheduler.Resender mDispatcher;
+    private final CcsMetrics mMetrics;
+    private final CollapsingQueue mBacklog;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final ScheduledExecutorService mExecutor;
+    private final AtomicInteger mReconnecting = new AtomicInteger();
+    private final AtomicLong mReplayed = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final Runnable mFlushBacklog = new Runnable() {
+        @Override
+        public void run() {
+            flushBacklog();
+        }
+    };
+
+    public ConnectionSupervisor(Connector connector, List<CcsConnection> connections,
+            RetryScheduler.Resender dispatcher, CcsMetrics metrics) {
+        this(connector, connections, dispatcher, metrics, DEFAULT_BACKLOG_CAPACITY,
+                DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param connector Opens replacement connections.
+     * @param connections The pool. Replacements are added to it, lost
+     * connections removed.
+     * @param dispatcher Sends a message on the pool, or hands it back to
+     * {@link #buffer(PendingMessage)} if there is no connection.
+     * @param metrics Counts reconnects.
+     * @param backlogCapacity How many messages wait for a connection at
+     * most. Further messages fail.
+     * @param initialBackoffMillis Delay after the first failed attempt to
+     * open a connection.
+     * @param maxBackoffMillis Upper bound for the delay of later attempts.
+     */
+    public ConnectionSupervisor(Connector connector, List<CcsConnection> connections,
+            RetryScheduler.Resender dispatcher, CcsMetrics metrics, int backlogCapacity,
+            long initialBackoffMillis, long maxBackoffMillis) {
+        mConnector = connector;
+        mConnections = connections;
+        mDispatcher = dispatcher;
+        mMetrics = metrics;
+        mBacklog = new CollapsingQueue(backlogCapacity);
+        mInitialBackoffMillis = initialBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+        final AtomicInteger threadCount = new AtomicInteger();
+        mExecutor = Executors.newScheduledThreadPool(RECONNECT_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ccs-supervisor-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Takes over a broken connection: removes it from the pool, replays
+     * its unacked messages and opens a replacement. Connections that
+     * have been closed on purpose are ignored, draining connections are
+     * not replaced, since that has happened already.
+     */
+    public void connectionLost(CcsConnection lost) {
+        final List<PendingMessage> unacked = lost.abandon();
+        if (unacked == null) {
+            return;
+        }
+        mConnections.remove(lost);
+        logger.log(Level.WARNING, "{0} lost, replaying {1} messages",
+                new Object[] {lost, unacked.size()});
+        mReplayed.addAndGet(unacked.size());
+        if (!lost.isDraining()) {
+            reconnect();
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                for (PendingMessage msg: unacked) {
+                    mDispatcher.resend(msg);
+                }
+            }
+        });
+    }
+
+    /**
+     * Opens another connection in the background and adds it to the
+     * pool. Retries with backoff until that succeeds.
+     */
+    public void reconnect() {
+        mReconnecting.incrementAndGet();
+        scheduleReconnect(0);
+    }
+
+    /**
+     * Keeps a message until a connection is available.
+     * @return false if the backlog is full.
+     */
+    public boolean buffer(PendingMessage msg) {
+        if (!mBacklog.offer(msg)) {
+            mRejected.incrementAndGet();
+            return false;
+        }
+        // a connection might have come up right after the caller looked
+        if (hasConnection()) {
+            execute(mFlushBacklog);
+        }
+        return true;
+    }
+
+    /**
+     * The number of messages waiting for a connection.
+     */
+    public int getBacklogSize() {
+        return mBacklog.size();
+    }
+
+    /**
+     * The number of messages in the backlog replaced by a newer one.
+     */
+    public long getCollapsedCount() {
+        return mBacklog.getCollapsedCount();
+    }
+
+    /**
+     * The number of connections currently being opened.
+     */
+    public int getReconnectingCount() {
+        return mReconnecting.get();
+    }
+
+    /**
+     * The number of unacked messages taken from lost connections.
+     */
+    public long getReplayedCount() {
+        return mReplayed.get();
+    }
+
+    /**
+     * The number of messages failed because the backlog was full.
+     */
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * Stops reconnecting. Messages in the backlog are failed.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+        PendingMessage msg;
+        while ((msg = mBacklog.poll()) != null) {
+            msg.failed(new IllegalStateException("Client has been shut down"));
+        }
+    }
+
+    private void scheduleReconnect(final int failures) {
+        try {
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    CcsConnection connection;
+                    try {
+                        connection = mConnector.open();
+                    } catch (Exception e) {
+                        mMetrics.onReconnectFailure();
+                        logger.log(Level.WARNING, "Couldn't open a connection (attempt "
+                                + (failures + 1) + ")", e);
+                        scheduleReconnect(failures + 1);
+                        return;
+                    }
+                    mConnections.add(connection);
+                    mReconnecting.decrementAndGet();
+                    mMetrics.onReconnect();
+                    flushBacklog();
+                }
+            }, computeBackoff(failures), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.log(Level.FINE, "Supervisor has been shut down", e);
+        }
+    }
+
+    /**
+     * Exponential backoff with equal jitter, like the
+     * {@link RetryScheduler}. The first attempt is made right away.
+     */
+    long computeBackoff(int failures) {
+        if (failures == 0) {
+            return 0;
+        }
+        int shift = Math.min(failures - 1, 30);
+        long backoff = Math.min(mMaxBackoffMillis, mInitialBackoffMillis << shift);
+        long half = backoff / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    private boolean hasConnection() {
+        for (CcsConnection connection: mConnections) {
+            if (!connection.isDraining() && !connection.isClosed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void flushBacklog() {
+        List<PendingMessage> buffered = new ArrayList<PendingMessage>();
+        mBacklog.drainTo(buffered);
+        if (!buffered.isEmpty()) {
+            logger.log(Level.INFO, "Sending {0} buffered messages", buffered.size());
+        }
+        for (PendingMessage msg: buffered) {
+            mDispatcher.resend(msg);
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            mExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            logger.log(Level.FINE, "Supervisor has been shut down", e);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+/**
+ * Hands out the {@link RegistrationStore} in use. Unless another one
+ * is set, this is the in-memory {@link PseudoDao}.
+ */
+public class DaoFactory {
+
+    private static volatile RegistrationStore sRegistrationStore = PseudoDao.getInstance();
+
+    public static RegistrationStore getRegistrationStore() {
+        return sRegistrationStore;
+    }
+
+    /**
+     * Replaces the store, e.g. with a {@link FileRegistrationStore}.
+     * Should be called before the client is connected.
+     */
+    public static void setRegistrationStore(RegistrationStore store) {
+        if (store == null) {
+            throw new IllegalArgumentException("store must not be null");
+        }
+        sRegistrationStore = store;
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Flow controlled send queue for the downstream messages of one
+ * CCS connection.
+ * <br>
+ * CCS allows at most 100 pending (that is: not yet acked or nacked)
+ * messages per connection. If you send more, CCS starts to throttle
+ * or to drop messages. Thus messages are queued here and a dispatcher
+ * thread only writes them to the connection while there is room in
+ * the window. Every ack or nack frees one slot again.
+ * <br>
+ * Every {@link Priority} has a queue of its own. When a slot frees up,
+ * the dispatcher picks the queue to send from by weighted round robin
+ * over the queues with messages waiting: with the default weights a
+ * broadcast gets one of 21 slots while replies are waiting, but all
+ * of them while nothing else is.
+ * <br>
+ * While messages wait for a slot, a newer message to the same device
+ * with the same collapse key replaces the older one, see
+ * {@link CollapsingQueue}.
+ */
+public class DownstreamPipeline {
+
+    public static final Logger logger = Logger.getLogger(DownstreamPipeline.class.getName());
+
+    /**
+     * The maximum number of unacked messages CCS allows per connection.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+    /**
+     * How long a message may stay in flight before it is given up on
+     * this connection, see {@link #expire(long)}.
+     */
+    public static final long DEFAULT_ACK_TIMEOUT_MILLIS = 30000;
+
+    private static final AtomicInteger sThreadCount = new AtomicInteger();
+
+    private final StanzaCoalescer mWriter;
+    private final CcsMetrics mMetrics;
+    private final int mWindowSize;
+    private final Semaphore mWindow;
+    private final CollapsingQueue[] mQueues;
+    /**
+     * The credit of each queue in the weighted round robin. Only used by
+     * the dispatcher.
+     */
+    private final int[] mCredits;
+    private final ConcurrentMap<String, PendingMessage> mInFlight =
+            new ConcurrentHashMap<String, PendingMessage>();
+    private final Thread mDispatcher;
+    private volatile boolean mRunning = true;
+    private volatile boolean mDraining = false;
+
+    public DownstreamPipeline(StanzaCoalescer writer, CcsMetrics metrics) {
+        this(writer, metrics, DEFAULT_WINDOW_SIZE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param writer Writes messages to the (logged in) connection.
+     * @param metrics Counts the messages written.
+     * @param windowSize Maximum number of unacked messages.
+     * @param queueCapacity Maximum number of queued messages per
+     * priority. If the queue is full, {@link #enqueue(PendingMessage)}
+     * blocks.
+     */
+    public DownstreamPipeline(StanzaCoalescer writer, CcsMetrics metrics, int windowSize,
+            int queueCapacity) {
+        mWriter = writer;
+        mMetrics = metrics;
+        mWindowSize = windowSize;
+        mWindow = new Semaphore(windowSize);
+        Priority[] priorities = Priority.values();
+        mQueues = new CollapsingQueue[priorities.length];
+        for (int i = 0; i < priorities.length; i++) {
+            mQueues[i] = new CollapsingQueue(queueCapacity);
+        }
+        mCredits = new int[priorities.length];
+        mDispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "ccs-downstream-" + sThreadCount.incrementAndGet());
+        mDispatcher.setDaemon(true);
+        mDispatcher.start();
+    }
+
+    /**
+     * Queues a message for sending. Blocks while the queue of its
+     * priority is at its capacity.
+     * @return false if this pipeline doesn't accept messages any more
+     * because it is draining or has been shut down. The message has not
+     * been queued in that case.
+     */
+    public boolean enqueue(PendingMessage msg) {
+        if (!mRunning || mDraining) {
+            return false;
+        }
+        CollapsingQueue queue = mQueues[msg.getPriority().ordinal()];
+        try {
+            queue.put(msg);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            msg.failed(e);
+            return true;
+        }
+        // drain() or abandon() might have emptied the queue right before the put
+        if ((mDraining || !mRunning) && queue.remove(msg)) {
+            return false;
+        }
+        LockSupport.unpark(mDispatcher);
+        return true;
+    }
+
+    /**
+     * Marks a message as acked and frees its window slot.
+     * @return the message or null if it was not in flight here.
+     */
+    public PendingMessage onAck(String messageId) {
+        PendingMessage msg = release(messageId);
+        if (msg != null) {
+            msg.acked();
+        }
+        return msg;
+    }
+
+    /**
+     * Frees the window slot of a message without completing it. Used for
+     * nacks, since those might be retried.
+     * @return the message or null if it was not in flight here.
+     */
+    public PendingMessage release(String messageId) {
+        if (messageId == null) {
+            return null;
+        }
+        PendingMessage msg = mInFlight.remove(messageId);
+        if (msg != null) {
+            mWindow.release();
+        }
+        return msg;
+    }
+
+    /**
+     * Frees the window slots of messages that have been in flight for
+     * longer than the timeout. CCS answers every message, but if an ack
+     * or nack gets lost, its slot would stay taken for good.
+     * <br>
+     * An ack or nack that still arrives for an expired message is
+     * ignored.
+     * @return the expired messages. They have not been completed, so the
+     * caller has to retry or fail them.
+     */
+    public List<PendingMessage> expire(long timeoutNanos) {
+        long now = System.nanoTime();
+        List<PendingMessage> expired = new ArrayList<PendingMessage>();
+        for (PendingMessage msg: mInFlight.values()) {
+            if (now - msg.getSentNanos() > timeoutNanos
+                    && mInFlight.remove(msg.getMessageId(), msg)) {
+                mWindow.release();
+                expired.add(msg);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Number of messages sent but not yet acked or nacked.
+     */
+    public int getInFlightCount() {
+        return mInFlight.size();
+    }
+
+    /**
+     * Maximum number of messages in flight.
+     */
+    public int getWindowSize() {
+        return mWindowSize;
+    }
+
+    /**
+     * Number of messages waiting for a free slot in the window.
+     */
+    public int getQueuedCount() {
+        int queued = 0;
+        for (CollapsingQueue queue: mQueues) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    /**
+     * Number of messages of the given priority waiting for a free slot.
+     */
+    public int getQueuedCount(Priority priority) {
+        return mQueues[priority.ordinal()].size();
+    }
+
+    /**
+     * Number of queued messages replaced by a newer one.
+     */
+    public long getCollapsedCount() {
+        long collapsed = 0;
+        for (CollapsingQueue queue: mQueues) {
+            collapsed += queue.getCollapsedCount();
+        }
+        return collapsed;
+    }
+
+    public boolean isDraining() {
+        return mDraining;
+    }
+
+    /**
+     * Stops sending messages and hands back all messages that are
+     * still queued, most urgent first, so that they can be sent on
+     * another connection. Messages already in flight stay here until they are acked or
+     * nacked.
+     */
+    public List<PendingMessage> drain() {
+        mDraining = true;
+        mDispatcher.interrupt();
+        List<PendingMessage> queued = new ArrayList<PendingMessage>();
+        for (CollapsingQueue queue: mQueues) {
+            queue.drainTo(queued);
+        }
+        return queued;
+    }
+
+    /**
+     * Stops sending and hands back all messages that have not been acked
+     * or nacked: those in flight, oldest first, followed by the queued
+     * ones, most urgent first. Used when the connection is gone and CCS
+     * won't answer any of them anymore.
+     */
+    public List<PendingMessage> abandon() {
+        mRunning = false;
+        mDispatcher.interrupt();
+        try {
+            // the dispatcher might be about to put a message in flight
+            mDispatcher.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<PendingMessage> unacked = new ArrayList<PendingMessage>();
+        for (String messageId: mInFlight.keySet()) {
+            PendingMessage msg = mInFlight.remove(messageId);
+            if (msg != null) {
+                unacked.add(msg);
+            }
+        }
+        Collections.sort(unacked, new Comparator<PendingMessage>() {
+            @Override
+            public int compare(PendingMessage lhs, PendingMessage rhs) {
+                return Long.compare(lhs.getSentNanos(), rhs.getSentNanos());
+            }
+        });
+        for (CollapsingQueue queue: mQueues) {
+            queue.drainTo(unacked);
+        }
+        return unacked;
+    }
+
+    /**
+     * Stops the dispatcher. Messages still queued are failed.
+     */
+    public void shutdown() {
+        mRunning = false;
+        mDispatcher.interrupt();
+        for (CollapsingQueue queue: mQueues) {
+            PendingMessage msg;
+            while ((msg = queue.poll()) != null) {
+                msg.failed(new IllegalStateException("Pipeline has been shut down"));
+            }
+        }
+    }
+
+    private void dispatch() {
+        while (mRunning && !mDraining) {
+            try {
+                mWindow.acquire();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            PendingMessage msg = next();
+            while (msg == null && mRunning && !mDraining) {
+                // enqueue() unparks the dispatcher, drain() and abandon() interrupt it
+                LockSupport.park(this);
+                Thread.interrupted();
+                msg = next();
+            }
+            if (msg == null) {
+                mWindow.release();
+                continue;
+            }
+            // sent() first, so that expire() never sees the time of an earlier attempt
+            msg.sent();
+            mInFlight.put(msg.getMessageId(), msg);
+            try {
+                mWriter.send(msg.getStanza());
+                mMetrics.onSent();
+            } catch (IllegalStateException e) {
+                // the connection is gone; the message stays in flight until
+                // the connection is abandoned and its messages are replayed
+                logger.log(Level.FINE, "Connection lost while sending " + msg.getMessageId(), e);
+                mMetrics.onSendError();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Couldn't send message " + msg.getMessageId(), e);
+                mMetrics.onSendError();
+                if (release(msg.getMessageId()) != null) {
+                    msg.failed(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the next message to send by smooth weighted round robin: every
+     * queue with messages waiting earns its weight, the richest one is
+     * picked and pays the sum of the weights earned. Queues without
+     * messages don't save up credit.
+     *
+     * @return the message or null if all queues are empty.
+     */
+    private PendingMessage next() {
+        Priority[] priorities = Priority.values();
+        while (true) {
+            int selected = -1;
+            int earned = 0;
+            for (int i = 0; i < mQueues.length; i++) {
+                if (mQueues[i].size() == 0) {
+                    mCredits[i] = 0;
+                    continue;
+                }
+                mCredits[i] += priorities[i].getWeight();
+                earned += priorities[i].getWeight();
+                if (selected < 0 || mCredits[i] > mCredits[selected]) {
+                    selected = i;
+                }
+            }
+            if (selected < 0) {
+                return null;
+            }
+            mCredits[selected] -= earned;
+            // null if the message was removed from the queue meanwhile
+            PendingMessage msg = mQueues[selected].poll();
+            if (msg != null) {
+                return msg;
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Feeds what CCS reports about registration ids back into the
+ * {@link RegistrationStore}.
+ * <br>
+ * If an ack carries a canonical registration id, the device has been
+ * registered more than once and the old id is replaced. If a nack
+ * reports DEVICE_UNREGISTERED or BAD_REGISTRATION, the id is removed,
+ * so that no further messages are sent to it.
+ * <br>
+ * The packet reader only queues the updates. A background thread
+ * applies them in batches. If the queue is full, updates are dropped:
+ * CCS reports the same problem again the next time a message is sent
+ * to the id.
+ */
+public class FeedbackProcessor {
+
+    public static final Logger logger = Logger.getLogger(FeedbackProcessor.class.getName());
+
+    public static final String ERROR_DEVICE_UNREGISTERED = "DEVICE_UNREGISTERED";
+    public static final String ERROR_BAD_REGISTRATION = "BAD_REGISTRATION";
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    private final BlockingQueue<Update> mQueue;
+    private final int mBatchSize;
+    private final AtomicLong mUpdated = new AtomicLong();
+    private final AtomicLong mRemoved = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final Thread mWorker;
+    private volatile boolean mRunning = true;
+
+    /**
+     * A registration id to replace or (if the canonical id is null) to
+     * remove.
+     */
+    private static class Update {
+        final String mRegId;
+        final String mCanonicalRegId;
+
+        Update(String regId, String canonicalRegId) {
+            mRegId = regId;
+            mCanonicalRegId = canonicalRegId;
+        }
+    }
+
+    public FeedbackProcessor() {
+        this(DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE);
+    }
+
+    public FeedbackProcessor(int queueCapacity, int batchSize) {
+        mQueue = new ArrayBlockingQueue<Update>(queueCapacity);
+        mBatchSize = batchSize;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processUpdates();
+            }
+        }, "ccs-feedback");
+        mWorker.setDaemon(true);
+        mWorker.start();
+    }
+
+    /**
+     * Whether a nack with this error code means the registration id
+     * is no longer valid.
+     */
+    public static boolean isInvalidRegistration(String errorCode) {
+        return ERROR_DEVICE_UNREGISTERED.equals(errorCode)
+                || ERROR_BAD_REGISTRATION.equals(errorCode);
+    }
+
+    /**
+     * Queues the canonical id of an ack, if it has one. The "from" of an
+     * ack is the registration id the message was sent to.
+     */
+    public void onAck(InboundMessage ack) {
+        String canonicalRegId = ack.getRegistrationId();
+        if (canonicalRegId != null && ack.getFrom() != null
+                && !canonicalRegId.equals(ack.getFrom())) {
+            offer(new Update(ack.getFrom(), canonicalRegId));
+        }
+    }
+
+    /**
+     * Queues the removal of the registration id, if the nack says it
+     * is invalid.
+     */
+    public void onNack(InboundMessage nack) {
+        if (nack.getFrom() != null && isInvalidRegistration(nack.getError())) {
+            offer(new Update(nack.getFrom(), null));
+        }
+    }
+
+    private void offer(Update update) {
+        if (!mRunning || !mQueue.offer(update)) {
+            mDropped.incrementAndGet();
+        }
+    }
+
+    private void processUpdates() {
+        List<Update> batch = new ArrayList<Update>(mBatchSize);
+        while (mRunning || !mQueue.isEmpty()) {
+            try {
+                Update first = mQueue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            mQueue.drainTo(batch, mBatchSize - batch.size());
+            apply(batch);
+            batch.clear();
+        }
+    }
+
+    private void apply(List<Update> batch) {
+        // the store might have been replaced since the last batch
+        RegistrationStore store = DaoFactory.getRegistrationStore();
+        for (Update update: batch) {
+            try {
+                if (update.mCanonicalRegId == null) {
+                    store.removeRegistration(update.mRegId);
+                    mRemoved.incrementAndGet();
+                } else {
+                    store.updateRegistration(update.mRegId, update.mCanonicalRegId);
+                    mUpdated.incrementAndGet();
+                }
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Couldn't apply feedback for " + update.mRegId, e);
+            }
+        }
+    }
+
+    /**
+     * The number of registration ids replaced by their canonical id.
+     */
+    public long getUpdatedCount() {
+        return mUpdated.get();
+    }
+
+    /**
+     * The number of invalid registration ids removed.
+     */
+    public long getRemovedCount() {
+        return mRemoved.get();
+    }
+
+    /**
+     * The number of updates dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Stops accepting updates. The worker applies the updates queued so
+     * far and then ends.
+     */
+    public void shutdown() {
+        mRunning = false;
+    }
+}
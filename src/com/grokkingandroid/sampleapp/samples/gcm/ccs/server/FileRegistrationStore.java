@@ -0,0 +1,605 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link RegistrationStore} that survives restarts.
+ * <br>
+ * All data is kept in an in-memory index, so reads are as fast as with
+ * the {@link PseudoDao}. Every change is also appended to a log file.
+ * Changes are collected in memory and written and fsynced together every
+ * few milliseconds (group commit), so a registration storm doesn't turn
+ * into a storm of fsyncs. Changes made within the last commit interval
+ * can thus be lost on a crash; call {@link #flush()} if you need them on
+ * disk right away.
+ * <br>
+ * Once the log grows beyond a threshold, a new log is started and a
+ * compacted snapshot of the index is written. Logs and snapshots are
+ * numbered by generation. On startup the newest snapshot is loaded and
+ * all logs of the same or later generations are replayed. Replaying is
+ * idempotent, so a crash during compaction loses nothing.
+ * <br>
+ * Each record is prefixed with its length and a CRC32 checksum. A torn
+ * record at the end of a log (from a crash during a write) is cut off
+ * during recovery.
+ */
+public class FileRegistrationStore implements RegistrationStore {
+
+    public static final Logger logger = Logger.getLogger(FileRegistrationStore.class.getName());
+
+    public static final long DEFAULT_COMMIT_INTERVAL_MILLIS = 10;
+    public static final long DEFAULT_COMPACTION_THRESHOLD = 64L * 1024 * 1024;
+
+    private static final String LOG_PREFIX = "registrations-";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+
+    private static final byte OP_ADD = 1;
+    private static final byte OP_REMOVE = 2;
+    /**
+     * Only found in logs written by older versions. Updates are now
+     * logged as a remove and an add.
+     */
+    private static final byte OP_UPDATE = 3;
+    private static final byte OP_NOTIFICATION_KEY_NAME = 4;
+    private static final byte OP_NOTIFICATION_KEY = 5;
+
+    /**
+     * Changes to the same registration id must end up in the log in the
+     * same order they were applied to the index. Thus each change holds
+     * the lock of its stripe while doing both.
+     */
+    private static final int LOCK_STRIPES = 64;
+
+    private static final int MAX_RECORD_LENGTH = 1 + 2 * (2 + 0xffff);
+    private static final byte[] EMPTY = new byte[0];
+
+    private final File mDirectory;
+    private final RegistrationStore mIndex;
+    private final long mCompactionThreshold;
+    private final Object[] mLocks = new Object[LOCK_STRIPES];
+    private final ScheduledExecutorService mCommitter;
+
+    private final Object mPendingLock = new Object();
+    /**
+     * Records not yet written to the log. Guarded by mPendingLock, since
+     * commit() replaces the buffer.
+     */
+    private ByteArrayOutputStream mPending = new ByteArrayOutputStream(64 * 1024);
+
+    // only used by the committer thread
+    private long mGeneration;
+    private FileChannel mLog;
+    private volatile boolean mClosed = false;
+
+    /**
+     * Opens the store in the given directory, with the default commit
+     * interval and compaction threshold.
+     */
+    public FileRegistrationStore(File directory) throws IOException {
+        this(directory, new PseudoDao(), DEFAULT_COMMIT_INTERVAL_MILLIS,
+                DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @param directory Where logs and snapshots are kept.
+     * @param index An empty in-memory store that serves all reads.
+     * @param commitIntervalMillis How often changes are written and fsynced.
+     * @param compactionThreshold Log size in bytes that triggers compaction.
+     */
+    public FileRegistrationStore(File directory, RegistrationStore index,
+            long commitIntervalMillis, long compactionThreshold) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create " + directory);
+        }
+        mDirectory = directory;
+        mIndex = index;
+        mCompactionThreshold = compactionThreshold;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            mLocks[i] = new Object();
+        }
+        recover();
+        mLog = openLog(mGeneration);
+        mCommitter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "registration-store-commit");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mCommitter.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    commit();
+                } catch (Throwable e) {
+                    // an exception thrown here would cancel all future commits
+                    logger.log(Level.SEVERE, "Couldn't write registrations", e);
+                }
+            }
+        }, commitIntervalMillis, commitIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // ---------------------------------------------------------------- writes
+
+    @Override
+    public void addRegistration(String regId, String accountName) {
+        byte[] record = encodeRecord(OP_ADD, regId, accountName);
+        synchronized (mLocks[stripeOf(regId)]) {
+            mIndex.addRegistration(regId, accountName);
+            append(record);
+        }
+    }
+
+    @Override
+    public void removeRegistration(String regId) {
+        byte[] record = encodeRecord(OP_REMOVE, regId, null);
+        synchronized (mLocks[stripeOf(regId)]) {
+            mIndex.removeRegistration(regId);
+            append(record);
+        }
+    }
+
+    /**
+     * Logs the result of the update, that is the removal of the old id
+     * and the add of the canonical one with the account it ends up with.
+     * Replaying it thus doesn't depend on what a snapshot has seen of the
+     * old id.
+     */
+    @Override
+    public void updateRegistration(String oldRegId, String canonicalRegId) {
+        if (oldRegId.equals(canonicalRegId)) {
+            return;
+        }
+        // always lock the lower stripe first to prevent deadlocks
+        int oldStripe = stripeOf(oldRegId);
+        int canonicalStripe = stripeOf(canonicalRegId);
+        synchronized (mLocks[Math.min(oldStripe, canonicalStripe)]) {
+            synchronized (mLocks[Math.max(oldStripe, canonicalStripe)]) {
+                byte[] remove = encodeRecord(OP_REMOVE, oldRegId, null);
+                byte[] add = encodeRecord(OP_ADD, canonicalRegId, mIndex.getAccount(oldRegId));
+                mIndex.updateRegistration(oldRegId, canonicalRegId);
+                append(remove, add);
+            }
+        }
+    }
+
+    @Override
+    public void storeNotificationKeyName(String accountName, String notificationKeyName) {
+        byte[] record = encodeRecord(OP_NOTIFICATION_KEY_NAME, accountName, notificationKeyName);
+        synchronized (mLocks[stripeOf(accountName)]) {
+            mIndex.storeNotificationKeyName(accountName, notificationKeyName);
+            append(record);
+        }
+    }
+
+    @Override
+    public void storeNotificationKey(String accountName, String notificationKey) {
+        byte[] record = encodeRecord(OP_NOTIFICATION_KEY, accountName, notificationKey);
+        synchronized (mLocks[stripeOf(accountName)]) {
+            mIndex.storeNotificationKey(accountName, notificationKey);
+            append(record);
+        }
+    }
+
+    private int stripeOf(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return (hash & 0x7fffffff) % LOCK_STRIPES;
+    }
+
+    // ----------------------------------------------------------------- reads
+
+    @Override
+    public List<String> getAllRegistrationIds() {
+        return mIndex.getAllRegistrationIds();
+    }
+
+    @Override
+    public Iterable<String> registrationIds() {
+        return mIndex.registrationIds();
+    }
+
+    @Override
+    public List<String> getAllRegistrationIdsForAccount(String account) {
+        return mIndex.getAllRegistrationIdsForAccount(account);
+    }
+
+    @Override
+    public Iterable<String> registrationIdsForAccount(String account) {
+        return mIndex.registrationIdsForAccount(account);
+    }
+
+    @Override
+    public String getAccount(String regId) {
+        return mIndex.getAccount(regId);
+    }
+
+    @Override
+    public String getNotificationKeyName(String accountName) {
+        return mIndex.getNotificationKeyName(accountName);
+    }
+
+    @Override
+    public String getNotificationKey(String accountName) {
+        return mIndex.getNotificationKey(accountName);
+    }
+
+    @Override
+    public Set<String> getAccounts() {
+        return mIndex.getAccounts();
+    }
+
+    // ------------------------------------------------------------ log format
+
+    /**
+     * Queues records for the next commit. The records of one call are
+     * written in the same commit. Changes encode their records before
+     * they touch the index, so that a value too long for the log doesn't
+     * end up in the index only.
+     */
+    private void append(byte[]... records) {
+        synchronized (mPendingLock) {
+            for (byte[] record: records) {
+                mPending.write(record, 0, record.length);
+            }
+        }
+    }
+
+    /**
+     * Record layout: length of the body (int), CRC32 of the body (int),
+     * body. The body is the op code followed by two strings, each written
+     * as its length (short) and its UTF-8 bytes. null is written as an
+     * empty string.
+     */
+    private byte[] encodeRecord(byte op, String first, String second) {
+        byte[] firstBytes = first.getBytes(StandardCharsets.UTF_8);
+        byte[] secondBytes = second != null ? second.getBytes(StandardCharsets.UTF_8) : EMPTY;
+        if (firstBytes.length > 0xffff || secondBytes.length > 0xffff) {
+            throw new IllegalArgumentException("Value too long to be stored");
+        }
+        int length = 1 + 2 + firstBytes.length + 2 + secondBytes.length;
+        byte[] record = new byte[8 + length];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.position(8);
+        buffer.put(op);
+        buffer.putShort((short) firstBytes.length).put(firstBytes);
+        buffer.putShort((short) secondBytes.length).put(secondBytes);
+        CRC32 crc = new CRC32();
+        crc.update(record, 8, length);
+        buffer.putInt(0, length).putInt(4, (int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * Applies all complete records of the file to the index.
+     * @return the number of bytes of valid records.
+     */
+    private long replay(File file) throws IOException {
+        long valid = 0;
+        InputStream stream = new BufferedInputStream(new FileInputStream(file), 1024 * 1024);
+        try {
+            DataInputStream in = new DataInputStream(stream);
+            CRC32 crc = new CRC32();
+            byte[] body = new byte[1024];
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            while (true) {
+                int length;
+                int expectedCrc;
+                try {
+                    length = in.readInt();
+                    expectedCrc = in.readInt();
+                    if (length < 5 || length > MAX_RECORD_LENGTH) {
+                        break;
+                    }
+                    if (body.length < length) {
+                        body = new byte[length];
+                        buffer = ByteBuffer.wrap(body);
+                    }
+                    in.readFully(body, 0, length);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+                buffer.clear();
+                byte op = buffer.get();
+                int firstLength = buffer.getShort() & 0xffff;
+                String first = new String(body, buffer.position(), firstLength,
+                        StandardCharsets.UTF_8);
+                buffer.position(buffer.position() + firstLength);
+                int secondLength = buffer.getShort() & 0xffff;
+                String second = secondLength == 0 ? null : new String(body, buffer.position(),
+                        secondLength, StandardCharsets.UTF_8);
+                applyToIndex(op, first, second);
+                valid += 8 + length;
+            }
+        } finally {
+            stream.close();
+        }
+        return valid;
+    }
+
+    private void applyToIndex(byte op, String first, String second) {
+        switch (op) {
+            case OP_ADD:
+                mIndex.addRegistration(first, second);
+                break;
+            case OP_REMOVE:
+                mIndex.removeRegistration(first);
+                break;
+            case OP_UPDATE:
+                mIndex.updateRegistration(first, second);
+                break;
+            case OP_NOTIFICATION_KEY_NAME:
+                mIndex.storeNotificationKeyName(first, second);
+                break;
+            case OP_NOTIFICATION_KEY:
+                mIndex.storeNotificationKey(first, second);
+                break;
+            default:
+                logger.log(Level.WARNING, "Skipping record with unknown op {0}", op);
+        }
+    }
+
+    // -------------------------------------------------- recovery, compaction
+
+    private void recover() throws IOException {
+        long start = System.currentTimeMillis();
+        TreeMap<Long, File> logs = listGenerations(LOG_PREFIX, LOG_SUFFIX);
+        TreeMap<Long, File> snapshots = listGenerations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        long snapshotGeneration = -1;
+        if (!snapshots.isEmpty()) {
+            snapshotGeneration = snapshots.lastKey();
+            replay(snapshots.lastEntry().getValue());
+        }
+        mGeneration = Math.max(snapshotGeneration, 0);
+        for (Map.Entry<Long, File> log: logs.entrySet()) {
+            if (log.getKey() < snapshotGeneration) {
+                continue;
+            }
+            long valid = replay(log.getValue());
+            if (valid < log.getValue().length()) {
+                logger.log(Level.WARNING, "Cutting off torn record at the end of {0}",
+                        log.getValue());
+                RandomAccessFile file = new RandomAccessFile(log.getValue(), "rw");
+                try {
+                    file.setLength(valid);
+                } finally {
+                    file.close();
+                }
+            }
+            mGeneration = Math.max(mGeneration, log.getKey());
+        }
+        logger.log(Level.INFO, "Recovered {0} registrations in {1} ms", new Object[] {
+                mIndex.getAllRegistrationIds().size(), System.currentTimeMillis() - start});
+    }
+
+    private TreeMap<Long, File> listGenerations(String prefix, String suffix) {
+        TreeMap<Long, File> generations = new TreeMap<Long, File>();
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return generations;
+        }
+        for (File file: files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                try {
+                    generations.put(Long.parseLong(name.substring(prefix.length(),
+                            name.length() - suffix.length())), file);
+                } catch (NumberFormatException e) {
+                    // not one of ours
+                }
+            }
+        }
+        return generations;
+    }
+
+    private File logFile(long generation) {
+        return new File(mDirectory, LOG_PREFIX + generation + LOG_SUFFIX);
+    }
+
+    private File snapshotFile(long generation) {
+        return new File(mDirectory, SNAPSHOT_PREFIX + generation + SNAPSHOT_SUFFIX);
+    }
+
+    @SuppressWarnings("resource")
+    private FileChannel openLog(long generation) throws IOException {
+        FileChannel channel = new RandomAccessFile(logFile(generation), "rw").getChannel();
+        channel.position(channel.size());
+        return channel;
+    }
+
+    /**
+     * Writes all pending records and fsyncs the log. Compacts if the log
+     * has grown too big. Only called on the committer thread (or after
+     * it has been stopped).
+     */
+    private void commit() throws IOException {
+        ByteArrayOutputStream pending;
+        synchronized (mPendingLock) {
+            if (mPending.size() == 0) {
+                return;
+            }
+            pending = mPending;
+            mPending = new ByteArrayOutputStream(Math.max(64 * 1024, pending.size()));
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        long start = mLog.position();
+        try {
+            while (buffer.hasRemaining()) {
+                mLog.write(buffer);
+            }
+            mLog.force(false);
+        } catch (IOException e) {
+            requeue(buffer, start);
+            throw e;
+        }
+        if (mLog.size() > mCompactionThreshold && !mClosed) {
+            compact();
+        }
+    }
+
+    /**
+     * Puts the records of a failed write back in front of the pending
+     * ones, so that the next commit writes them again. The log is cut
+     * back to where the write started; if that fails too, only the
+     * bytes that didn't make it into the log are written again.
+     */
+    private void requeue(ByteBuffer buffer, long start) {
+        try {
+            mLog.truncate(start);
+            mLog.position(start);
+            buffer.rewind();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Couldn't cut back the log after a failed write", e);
+        }
+        synchronized (mPendingLock) {
+            ByteArrayOutputStream pending = new ByteArrayOutputStream(
+                    Math.max(64 * 1024, buffer.remaining() + mPending.size()));
+            pending.write(buffer.array(), buffer.position(), buffer.remaining());
+            try {
+                mPending.writeTo(pending);
+            } catch (IOException e) {
+                // can't happen with a ByteArrayOutputStream
+                throw new IllegalStateException(e);
+            }
+            mPending = pending;
+        }
+    }
+
+    /**
+     * Starts a new log and writes a snapshot of the index for the new
+     * generation. Changes made while the snapshot is written go to the
+     * new log and are replayed on top of the snapshot.
+     */
+    private void compact() throws IOException {
+        long start = System.currentTimeMillis();
+        long oldGeneration = mGeneration;
+        mLog.close();
+        mGeneration++;
+        mLog = openLog(mGeneration);
+
+        File tmp = new File(mDirectory, SNAPSHOT_PREFIX + mGeneration + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        try {
+            OutputStream out = new BufferedOutputStream(fileOut, 1024 * 1024);
+            for (String regId: mIndex.registrationIds()) {
+                out.write(encodeRecord(OP_ADD, regId, mIndex.getAccount(regId)));
+            }
+            for (String account: new ArrayList<String>(mIndex.getAccounts())) {
+                String keyName = mIndex.getNotificationKeyName(account);
+                if (keyName != null) {
+                    out.write(encodeRecord(OP_NOTIFICATION_KEY_NAME, account, keyName));
+                }
+                String key = mIndex.getNotificationKey(account);
+                if (key != null) {
+                    out.write(encodeRecord(OP_NOTIFICATION_KEY, account, key));
+                }
+            }
+            out.flush();
+            fileOut.getFD().sync();
+        } finally {
+            fileOut.close();
+        }
+        if (!tmp.renameTo(snapshotFile(mGeneration))) {
+            throw new IOException("Couldn't rename " + tmp);
+        }
+        for (File old: listGenerations(LOG_PREFIX, LOG_SUFFIX).headMap(mGeneration).values()) {
+            old.delete();
+        }
+        for (File old: listGenerations(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX).headMap(mGeneration).values()) {
+            old.delete();
+        }
+        logger.log(Level.INFO, "Compacted generation {0} in {1} ms",
+                new Object[] {oldGeneration, System.currentTimeMillis() - start});
+    }
+
+    /**
+     * Writes and fsyncs all changes made so far.
+     */
+    public void flush() throws IOException {
+        if (mClosed) {
+            return;
+        }
+        try {
+            mCommitter.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    commit();
+                    return null;
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flushing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Couldn't flush", e.getCause());
+        }
+    }
+
+    /**
+     * Writes all pending changes and closes the log. The store must not
+     * be changed afterwards.
+     */
+    public void close() throws IOException {
+        flush();
+        mClosed = true;
+        mCommitter.shutdown();
+        try {
+            mCommitter.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        commit();
+        mLog.close();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.Map;
+
+/**
+ * Any message CCS sends to the server: upstream data messages, acks,
+ * nacks and control messages. Only the fields relevant for the message
+ * type are set, all others are null.
+ */
+public class InboundMessage {
+
+    public static final String TYPE_ACK = "ack";
+    public static final String TYPE_NACK = "nack";
+    public static final String TYPE_CONTROL = "control";
+
+    /**
+     * "ack", "nack", "control" or null for upstream data messages.
+     */
+    String mMessageType;
+    String mMessageId;
+    /**
+     * Sender of an upstream message, target of an acked/nacked message.
+     */
+    String mFrom;
+    /**
+     * Package name of the app that sent an upstream message.
+     */
+    String mCategory;
+    /**
+     * Error code of a nack, e.g. BAD_REGISTRATION.
+     */
+    String mError;
+    String mErrorDescription;
+    /**
+     * Canonical registration id, if CCS sends one with an ack.
+     */
+    String mRegistrationId;
+    /**
+     * Type of a control message, e.g. CONNECTION_DRAINING.
+     */
+    String mControlType;
+    Map<String, String> mData;
+
+    public boolean isUpstream() {
+        return mMessageType == null;
+    }
+
+    public String getMessageType() {
+        return mMessageType;
+    }
+
+    public String getMessageId() {
+        return mMessageId;
+    }
+
+    public String getFrom() {
+        return mFrom;
+    }
+
+    public String getCategory() {
+        return mCategory;
+    }
+
+    public String getError() {
+        return mError;
+    }
+
+    public String getErrorDescription() {
+        return mErrorDescription;
+    }
+
+    public String getRegistrationId() {
+        return mRegistrationId;
+    }
+
+    public String getControlType() {
+        return mControlType;
+    }
+
+    public Map<String, String> getData() {
+        return mData;
+    }
+
+    /**
+     * Creates the message handed to the {@link PayloadProcessor}s.
+     */
+    public CcsMessage toCcsMessage() {
+        return new CcsMessage(mFrom, mCategory, mMessageId, mData);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Codec based on json-simple. This is how the client used to encode and
+ * decode messages: every message is built as a map first and every
+ * received message is parsed into a map.
+ */
+public class JsonSimpleCodec implements MessageCodec {
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public String encodeMessage(String to, String messageId, Map<String, String> payload,
+            String collapseKey, Long timeToLive, Boolean delayWhileIdle) {
+        return JSONValue.toJSONString(CcsClient.createAttributeMap(to, messageId, payload,
+                collapseKey, timeToLive, delayWhileIdle));
+    }
+
+    @Override
+    public String encodeMessageStanza(String to, String messageId, Map<String, String> payload,
+            String collapseKey, Long timeToLive, Boolean delayWhileIdle) {
+        return encodeStanza(encodeMessage(to, messageId, payload, collapseKey,
+                timeToLive, delayWhileIdle));
+    }
+
+    @Override
+    public String encodeAck(String to, String messageId) {
+        return encodeReceipt("ack", to, messageId);
+    }
+
+    @Override
+    public String encodeNack(String to, String messageId) {
+        return encodeReceipt("nack", to, messageId);
+    }
+
+    private String encodeReceipt(String type, String to, String messageId) {
+        Map<String, Object> message = new HashMap<String, Object>();
+        message.put("message_type", type);
+        message.put("to", to);
+        message.put("message_id", messageId);
+        return JSONValue.toJSONString(message);
+    }
+
+    @Override
+    public String encodeStanza(String json) {
+        return new CcsClient.GcmPacketExtension(json).toPacket().toXML();
+    }
+
+    @Override
+    public InboundMessage decode(String json) {
+        Map<?, ?> jsonMap;
+        try {
+            jsonMap = (Map<?, ?>) JSONValue.parseWithException(json);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Error parsing JSON " + json, e);
+        } catch (ClassCastException e) {
+            throw new IllegalArgumentException("Not a JSON object: " + json, e);
+        }
+        InboundMessage msg = new InboundMessage();
+        msg.mMessageType = getString(jsonMap, "message_type");
+        msg.mMessageId = getString(jsonMap, "message_id");
+        msg.mFrom = getString(jsonMap, "from");
+        msg.mCategory = getString(jsonMap, "category");
+        msg.mError = getString(jsonMap, "error");
+        msg.mErrorDescription = getString(jsonMap, "error_description");
+        msg.mRegistrationId = getString(jsonMap, "registration_id");
+        msg.mControlType = getString(jsonMap, "control_type");
+        @SuppressWarnings("unchecked")
+        Map<String, String> data = (Map<String, String>) jsonMap.get("data");
+        msg.mData = data;
+        return msg;
+    }
+
+    private static String getString(Map<?, ?> jsonMap, String key) {
+        Object value = jsonMap.get(key);
+        return value != null ? value.toString() : null;
+    }
+}
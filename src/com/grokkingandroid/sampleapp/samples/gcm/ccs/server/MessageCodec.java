@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.Map;
+
+/**
+ * Converts GCM messages from and to their JSON representation.
+ * <br>
+ * {@link CcsClient} uses the codec set with
+ * {@link CcsClient#setCodec(MessageCodec)} for all its helpers.
+ * Implementations must be thread safe.
+ */
+public interface MessageCodec {
+
+    /**
+     * Creates a JSON encoded GCM message.
+     *
+     * @param to RegistrationId of the target device (Required).
+     * @param messageId Unique messageId for which CCS will send an "ack/nack"
+     * (Required).
+     * @param payload Message content intended for the application. (Optional).
+     * @param collapseKey GCM collapse_key parameter (Optional).
+     * @param timeToLive GCM time_to_live parameter (Optional).
+     * @param delayWhileIdle GCM delay_while_idle parameter (Optional).
+     * @return JSON encoded GCM message.
+     */
+    String encodeMessage(String to, String messageId, Map<String, String> payload,
+            String collapseKey, Long timeToLive, Boolean delayWhileIdle);
+
+    /**
+     * Same as {@link #encodeMessage(String, String, Map, String, Long, Boolean)}
+     * but returns the complete XMPP stanza, ready to be written to the
+     * connection.
+     */
+    String encodeMessageStanza(String to, String messageId, Map<String, String> payload,
+            String collapseKey, Long timeToLive, Boolean delayWhileIdle);
+
+    /**
+     * Creates a JSON encoded ACK for an upstream message.
+     */
+    String encodeAck(String to, String messageId);
+
+    /**
+     * Creates a JSON encoded NACK for an upstream message.
+     */
+    String encodeNack(String to, String messageId);
+
+    /**
+     * Wraps a JSON encoded message into a &lt;message&gt;&lt;gcm&gt; stanza.
+     */
+    String encodeStanza(String json);
+
+    /**
+     * Parses a message received from CCS.
+     *
+     * @throws IllegalArgumentException if the JSON is malformed.
+     */
+    InboundMessage decode(String json);
+}
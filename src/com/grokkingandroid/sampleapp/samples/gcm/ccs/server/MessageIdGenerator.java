@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Generates unique message ids without locks and without remembering
+ * the ids handed out.
+ * <br>
+ * An id consists of a prefix and a counter. The prefix is made of the
+ * node id and the time this generator was created, so ids of different
+ * servers and of different runs of the same server never collide. The
+ * counter is split into stripes to keep threads from contending on a
+ * single value: stripe i only hands out the numbers i, i + STRIPES,
+ * i + 2 * STRIPES and so on.
+ * <br>
+ * The node id is taken from the system property "ccs.nodeId". If that
+ * isn't set, it is made of the host name and the process id, which
+ * is unique as long as no two hosts share a name.
+ */
+public class MessageIdGenerator {
+
+    public static final Logger logger = Logger.getLogger(MessageIdGenerator.class.getName());
+
+    public static final String NODE_ID_PROPERTY = "ccs.nodeId";
+
+    private static final int STRIPES = 16;
+    /**
+     * Each counter sits in its own cache line, so that stripes don't
+     * slow each other down (false sharing).
+     */
+    private static final int PADDING = 8;
+
+    private static final MessageIdGenerator instance = new MessageIdGenerator(getNodeId());
+
+    private final String mPrefix;
+    private final AtomicLongArray mCounters = new AtomicLongArray(STRIPES * PADDING);
+
+    public MessageIdGenerator(String nodeId) {
+        mPrefix = nodeId + "-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+    }
+
+    public static MessageIdGenerator getInstance() {
+        return instance;
+    }
+
+    private static String getNodeId() {
+        String nodeId = System.getProperty(NODE_ID_PROPERTY);
+        if (nodeId != null) {
+            return nodeId;
+        }
+        // "pid@host" on the common JVMs
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int at = name.indexOf('@');
+        if (at > 0 && at < name.length() - 1) {
+            nodeId = (name.substring(at + 1) + "." + name.substring(0, at))
+                    .replaceAll("[^A-Za-z0-9.]", "_");
+            logger.log(Level.INFO, "{0} not set, using {1} as node id",
+                    new Object[] {NODE_ID_PROPERTY, nodeId});
+            return nodeId;
+        }
+        nodeId = Integer.toString(ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE), 36);
+        logger.log(Level.WARNING, "{0} not set and host or process id unknown, using random "
+                + "node id {1}. Set {0} to keep message ids of different servers apart.",
+                new Object[] {NODE_ID_PROPERTY, nodeId});
+        return nodeId;
+    }
+
+    /**
+     * Returns an id that hasn't been returned before, by any thread and
+     * by any previous run.
+     */
+    public String nextId() {
+        int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+        long count = mCounters.getAndIncrement(stripe * PADDING);
+        return mPrefix + Long.toString(count * STRIPES + stripe, 36);
+    }
+}
@@ -25,15 +25,13 @@ public class MessageProcessor implements PayloadProcessor{
         PseudoDao dao = PseudoDao.getInstance();
         CcsClient client = CcsClient.getInstance();
         String msgId = dao.getUniqueMessageId();
-        String jsonRequest = 
-                CcsClient.createJsonMessage(
-                        msg.getFrom(), 
-                        msgId, 
-                        msg.getPayload(), 
-                        null, 
-                        null, // TTL (null -> default-TTL) 
-                        false);
-        client.send(jsonRequest);
+        client.send(
+                msg.getFrom(), 
+                msgId, 
+                msg.getPayload(), 
+                null, 
+                null, // TTL (null -> default-TTL) 
+                false);
     }
 
 }
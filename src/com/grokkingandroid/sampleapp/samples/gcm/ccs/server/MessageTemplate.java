@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.Map;
+
+/**
+ * A downstream message that is sent to many recipients.
+ * <br>
+ * The parts that are the same for all recipients (payload, collapse_key,
+ * time_to_live and delay_while_idle) are encoded once, when the template
+ * is created. For each recipient only "to" and "message_id" are spliced
+ * in. Changes to the payload map after creating the template have no
+ * effect.
+ * <br>
+ * Templates always use the format of the {@link StreamingJsonCodec} and
+ * are immutable, thus they can be shared between threads.
+ */
+public class MessageTemplate {
+
+    private final String mCollapseKey;
+    /**
+     * Everything up to the value of "to".
+     */
+    private final String mStanzaPrefix;
+    /**
+     * Everything after the value of "message_id".
+     */
+    private final String mStanzaSuffix;
+    private final String mJsonSuffix;
+
+    /**
+     * @param payload Message content intended for the application. (Optional).
+     * @param collapseKey GCM collapse_key parameter (Optional).
+     * @param timeToLive GCM time_to_live parameter (Optional).
+     * @param delayWhileIdle GCM delay_while_idle parameter (Optional).
+     */
+    public MessageTemplate(Map<String, String> payload, String collapseKey,
+            Long timeToLive, Boolean delayWhileIdle) {
+        mCollapseKey = collapseKey;
+        StringBuilder shared = new StringBuilder();
+        boolean first = StreamingJsonCodec.writeOptions(shared, true, collapseKey,
+                timeToLive, delayWhileIdle);
+        if (payload != null) {
+            StreamingJsonCodec.writeKey(shared, "data", first);
+            StreamingJsonCodec.writeStringMap(shared, payload);
+        }
+        if (shared.length() > 0) {
+            shared.insert(0, ',');
+        }
+        shared.append('}');
+        mJsonSuffix = shared.toString();
+        mStanzaPrefix = StreamingJsonCodec.STANZA_PREFIX + "{\"to\":";
+        mStanzaSuffix = mJsonSuffix + StreamingJsonCodec.STANZA_SUFFIX;
+    }
+
+    public String getCollapseKey() {
+        return mCollapseKey;
+    }
+
+    /**
+     * Returns the JSON encoded message for one recipient.
+     */
+    public String toJson(String to, String messageId) {
+        StringBuilder buf = StreamingJsonCodec.buffer();
+        buf.append("{\"to\":");
+        appendRecipient(buf, to, messageId);
+        buf.append(mJsonSuffix);
+        return buf.toString();
+    }
+
+    /**
+     * Returns the complete XMPP stanza for one recipient.
+     */
+    public String toStanza(String to, String messageId) {
+        StringBuilder buf = StreamingJsonCodec.buffer();
+        buf.append(mStanzaPrefix);
+        appendRecipient(buf, to, messageId);
+        buf.append(mStanzaSuffix);
+        return buf.toString();
+    }
+
+    private static void appendRecipient(StringBuilder buf, String to, String messageId) {
+        StreamingJsonCodec.writeString(buf, to);
+        buf.append(",\"message_id\":");
+        StreamingJsonCodec.writeString(buf, messageId);
+    }
+}
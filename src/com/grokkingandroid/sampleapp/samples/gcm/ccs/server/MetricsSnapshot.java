@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * An immutable copy of the {@link CcsMetrics} at one point in time.
+ * <br>
+ * Rates are not part of the snapshot. Take two snapshots and use
+ * {@link #getSendRateSince(MetricsSnapshot)}.
+ */
+public class MetricsSnapshot {
+
+    private final long mTimestampMillis;
+    private final long mSent;
+    private final long mAcked;
+    private final long mNacked;
+    private final long mSendErrors;
+    private final long mRetries;
+    private final long mUpstream;
+    private final long mUpstreamErrors;
+    private final long mReconnects;
+    private final long mReconnectFailures;
+    private final long mConnectionErrors;
+    private final long mDrainings;
+    private final LatencyHistogram.Snapshot mAckLatency;
+    private final Map<String, Long> mNackCounts;
+    private final Map<String, Integer> mInFlight;
+    private final Map<String, Integer> mQueued;
+    private final Map<String, LatencyHistogram.Snapshot> mProcessorTimes;
+
+    MetricsSnapshot(long timestampMillis, long sent, long acked, long nacked, long sendErrors,
+            long retries, long upstream, long upstreamErrors, long reconnects,
+            long reconnectFailures, long connectionErrors, long drainings,
+            LatencyHistogram.Snapshot ackLatency, Map<String, Long> nackCounts,
+            Map<String, Integer> inFlight, Map<String, Integer> queued,
+            Map<String, LatencyHistogram.Snapshot> processorTimes) {
+        mTimestampMillis = timestampMillis;
+        mSent = sent;
+        mAcked = acked;
+        mNacked = nacked;
+        mSendErrors = sendErrors;
+        mRetries = retries;
+        mUpstream = upstream;
+        mUpstreamErrors = upstreamErrors;
+        mReconnects = reconnects;
+        mReconnectFailures = reconnectFailures;
+        mConnectionErrors = connectionErrors;
+        mDrainings = drainings;
+        mAckLatency = ackLatency;
+        mNackCounts = Collections.unmodifiableMap(nackCounts);
+        mInFlight = Collections.unmodifiableMap(inFlight);
+        mQueued = Collections.unmodifiableMap(queued);
+        mProcessorTimes = Collections.unmodifiableMap(processorTimes);
+    }
+
+    public long getTimestampMillis() {
+        return mTimestampMillis;
+    }
+
+    /**
+     * The number of messages written to a connection, including retries.
+     */
+    public long getSentCount() {
+        return mSent;
+    }
+
+    public long getAckedCount() {
+        return mAcked;
+    }
+
+    public long getNackedCount() {
+        return mNacked;
+    }
+
+    /**
+     * The number of messages that couldn't be written to a connection.
+     */
+    public long getSendErrorCount() {
+        return mSendErrors;
+    }
+
+    public long getRetryCount() {
+        return mRetries;
+    }
+
+    public long getUpstreamCount() {
+        return mUpstream;
+    }
+
+    /**
+     * The number of upstream messages that were nacked because their
+     * processor failed.
+     */
+    public long getUpstreamErrorCount() {
+        return mUpstreamErrors;
+    }
+
+    public long getReconnectCount() {
+        return mReconnects;
+    }
+
+    public long getReconnectFailureCount() {
+        return mReconnectFailures;
+    }
+
+    public long getConnectionErrorCount() {
+        return mConnectionErrors;
+    }
+
+    public long getDrainingCount() {
+        return mDrainings;
+    }
+
+    /**
+     * Time from writing a message to receiving its ack.
+     */
+    public LatencyHistogram.Snapshot getAckLatency() {
+        return mAckLatency;
+    }
+
+    /**
+     * The number of nacks per error code.
+     */
+    public Map<String, Long> getNackCounts() {
+        return mNackCounts;
+    }
+
+    /**
+     * The number of messages in flight per connection.
+     */
+    public Map<String, Integer> getInFlightByConnection() {
+        return mInFlight;
+    }
+
+    /**
+     * The number of messages waiting for a window slot per connection.
+     */
+    public Map<String, Integer> getQueuedByConnection() {
+        return mQueued;
+    }
+
+    /**
+     * The time the processors took per action.
+     */
+    public Map<String, LatencyHistogram.Snapshot> getProcessorTimes() {
+        return mProcessorTimes;
+    }
+
+    /**
+     * Messages written per second between an earlier snapshot and this one.
+     */
+    public double getSendRateSince(MetricsSnapshot earlier) {
+        long millis = mTimestampMillis - earlier.mTimestampMillis;
+        if (millis <= 0) {
+            return 0;
+        }
+        return (mSent - earlier.mSent) * 1000.0 / millis;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot[sent=" + mSent + ", acked=" + mAcked + ", nacked=" + mNacked
+                + ", sendErrors=" + mSendErrors + ", retries=" + mRetries
+                + ", upstream=" + mUpstream + ", upstreamErrors=" + mUpstreamErrors
+                + ", reconnects=" + mReconnects + ", reconnectFailures=" + mReconnectFailures
+                + ", connectionErrors=" + mConnectionErrors + ", drainings=" + mDrainings
+                + ", ackLatency=(" + mAckLatency + "), nacks=" + mNackCounts
+                + ", inFlight=" + mInFlight + ", queued=" + mQueued + "]";
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+/**
+ * Signals that CCS rejected a downstream message with a NACK.
+ */
+public class NackException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String mMessageId;
+    private final String mErrorCode;
+
+    public NackException(String messageId, String errorCode, String description) {
+        super("Message " + messageId + " was rejected: " + errorCode
+                + (description != null ? " (" + description + ")" : ""));
+        mMessageId = messageId;
+        mErrorCode = errorCode;
+    }
+
+    public String getMessageId() {
+        return mMessageId;
+    }
+
+    /**
+     * The value of the "error" field of the NACK, e.g. BAD_REGISTRATION.
+     */
+    public String getErrorCode() {
+        return mErrorCode;
+    }
+}
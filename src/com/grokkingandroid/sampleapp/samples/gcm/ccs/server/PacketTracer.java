@@ -0,0 +1,175 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.packet.Packet;
+
+/**
+ * Logs the packets sent and received by the client.
+ * <br>
+ * Tracing costs next to nothing when it is off: if the logger doesn't
+ * log at the configured level or the sample rate is 0, a packet is
+ * dropped after two volatile reads. Otherwise only every n-th packet
+ * (chosen at random) is traced. The packet is queued as it is and only
+ * converted to XML on the tracer's own thread. If that thread can't keep
+ * up, packets are dropped instead of slowing down the connections.
+ * <br>
+ * By default every packet is traced at {@link Level#FINE}, so nothing
+ * is traced unless that level is enabled for this logger. The defaults
+ * can be set with the system properties "ccs.trace.sampleRate" and
+ * "ccs.trace.level".
+ */
+public class PacketTracer {
+
+    public static final Logger logger = Logger.getLogger(PacketTracer.class.getName());
+
+    public static final String SAMPLE_RATE_PROPERTY = "ccs.trace.sampleRate";
+    public static final String LEVEL_PROPERTY = "ccs.trace.level";
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private final BlockingQueue<Trace> mQueue;
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile int mSampleRate;
+    private volatile Level mLevel;
+
+    private static class Trace {
+        final String mDirection;
+        final Object mConnection;
+        final Packet mPacket;
+
+        Trace(String direction, Object connection, Packet packet) {
+            mDirection = direction;
+            mConnection = connection;
+            mPacket = packet;
+        }
+    }
+
+    public PacketTracer() {
+        this(Integer.getInteger(SAMPLE_RATE_PROPERTY, 1),
+                Level.parse(System.getProperty(LEVEL_PROPERTY, Level.FINE.getName())),
+                DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param sampleRate Trace one in sampleRate packets. 1 traces every
+     * packet, 0 turns tracing off.
+     * @param level The level the packets are logged at.
+     * @param queueCapacity The number of packets waiting to be logged
+     * before further packets are dropped.
+     */
+    public PacketTracer(int sampleRate, Level level, int queueCapacity) {
+        setSampleRate(sampleRate);
+        setLevel(level);
+        mQueue = new ArrayBlockingQueue<Trace>(queueCapacity);
+        Thread appender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                append();
+            }
+        }, "ccs-packet-tracer");
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate < 0) {
+            throw new IllegalArgumentException("sampleRate must not be negative: " + sampleRate);
+        }
+        mSampleRate = sampleRate;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public void setLevel(Level level) {
+        if (level == null) {
+            throw new IllegalArgumentException("level must not be null");
+        }
+        mLevel = level;
+    }
+
+    public Level getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * Whether packets are traced at all.
+     */
+    public boolean isEnabled() {
+        return mSampleRate > 0 && logger.isLoggable(mLevel);
+    }
+
+    /**
+     * Traces a packet received on the connection.
+     */
+    public void received(Object connection, Packet packet) {
+        trace("Received on", connection, packet);
+    }
+
+    /**
+     * Traces a packet sent on the connection.
+     */
+    public void sent(Object connection, Packet packet) {
+        trace("Sent on", connection, packet);
+    }
+
+    private void trace(String direction, Object connection, Packet packet) {
+        int sampleRate = mSampleRate;
+        if (sampleRate == 0 || !logger.isLoggable(mLevel)) {
+            return;
+        }
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        if (!mQueue.offer(new Trace(direction, connection, packet))) {
+            mDropped.incrementAndGet();
+        }
+    }
+
+    private void append() {
+        while (true) {
+            Trace trace;
+            try {
+                trace = mQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                logger.log(mLevel, "{0} {1}: {2}",
+                        new Object[] {trace.mDirection, trace.mConnection, trace.mPacket.toXML()});
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Couldn't trace packet", e);
+            }
+        }
+    }
+
+    /**
+     * The number of sampled packets that were dropped because the
+     * tracer's queue was full.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+}
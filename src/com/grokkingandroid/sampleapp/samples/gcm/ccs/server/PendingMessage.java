@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * A downstream message that has been handed to the client but has not
+ * yet been acknowledged by CCS.
+ * <br>
+ * The future completes with the message id as soon as CCS acks the
+ * message and completes exceptionally with a {@link NackException}
+ * if CCS rejects it.
+ */
+public class PendingMessage {
+
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    /**
+     * Unique id of this message. CCS uses it in the ack/nack.
+     */
+    private final String mMessageId;
+    /**
+     * The complete XMPP stanza, ready to be written to the connection.
+     * Kept for retries.
+     */
+    private final String mStanza;
+    /**
+     * Registration id of the recipient, if known. Used for rate limiting.
+     */
+    private final String mTo;
+    /**
+     * The collapse_key of the message, if any. A newer message with the
+     * same recipient and collapse key may replace this one while both
+     * are still waiting.
+     */
+    private final String mCollapseKey;
+    /**
+     * Decides which queue of a connection the message waits in.
+     */
+    private final Priority mPriority;
+    /**
+     * Tells which of two messages with the same collapse key is newer.
+     */
+    private final long mSequence = sSequence.incrementAndGet();
+    private final CompletableFuture<String> mFuture = new CompletableFuture<String>();
+    /**
+     * How often this message has been written to a connection.
+     */
+    private volatile int mAttempts = 0;
+    /**
+     * System.nanoTime() of the last write to a connection.
+     */
+    private volatile long mSentNanos;
+    /**
+     * Older messages this one has replaced. They complete together with
+     * this one. Guarded by this.
+     */
+    private List<PendingMessage> mReplaced;
+    /**
+     * Set once this message completed. Guarded by this.
+     */
+    private boolean mCompleted = false;
+
+    public PendingMessage(String messageId, String stanza) {
+        this(messageId, stanza, null, null);
+    }
+
+    public PendingMessage(String messageId, String stanza, String to, String collapseKey) {
+        this(messageId, stanza, to, collapseKey, Priority.NORMAL);
+    }
+
+    public PendingMessage(String messageId, String stanza, String to, String collapseKey,
+            Priority priority) {
+        if (messageId == null) {
+            throw new IllegalArgumentException("messageId must not be null");
+        }
+        mMessageId = messageId;
+        mStanza = stanza;
+        mTo = to;
+        mCollapseKey = collapseKey;
+        mPriority = priority == null ? Priority.NORMAL : priority;
+    }
+
+    public String getMessageId() {
+        return mMessageId;
+    }
+
+    public String getStanza() {
+        return mStanza;
+    }
+
+    public String getTo() {
+        return mTo;
+    }
+
+    public String getCollapseKey() {
+        return mCollapseKey;
+    }
+
+    public Priority getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * Recipient and collapse key in one string, or null if the message
+     * lacks either of them. Messages with the same key replace each
+     * other.
+     */
+    String getCollapseId() {
+        if (mTo == null || mCollapseKey == null) {
+            return null;
+        }
+        return mTo + '\u0000' + mCollapseKey;
+    }
+
+    /**
+     * Increases with every message created, thus a message with a
+     * higher sequence is newer.
+     */
+    public long getSequence() {
+        return mSequence;
+    }
+
+    public CompletableFuture<String> getFuture() {
+        return mFuture;
+    }
+
+    public int getAttempts() {
+        return mAttempts;
+    }
+
+    /**
+     * When the message was last written to a connection, in terms of
+     * System.nanoTime().
+     */
+    public long getSentNanos() {
+        return mSentNanos;
+    }
+
+    void sent() {
+        mAttempts++;
+        mSentNanos = System.nanoTime();
+    }
+
+    void acked() {
+        mFuture.complete(mMessageId);
+        for (PendingMessage replaced: complete()) {
+            replaced.acked();
+        }
+    }
+
+    void failed(Throwable cause) {
+        mFuture.completeExceptionally(cause);
+        for (PendingMessage replaced: complete()) {
+            replaced.failed(cause);
+        }
+    }
+
+    private synchronized List<PendingMessage> complete() {
+        mCompleted = true;
+        List<PendingMessage> replaced = mReplaced;
+        mReplaced = null;
+        return replaced == null ? Collections.<PendingMessage>emptyList() : replaced;
+    }
+
+    /**
+     * Drops this message in favor of a newer one with the same recipient
+     * and collapse key. This message completes the way the newer one
+     * does, since only the newer one goes on the wire.
+     * <br>
+     * The newer message takes over the messages this one replaced, so
+     * the completion doesn't recurse down a long chain of replacements.
+     */
+    void supersededBy(PendingMessage newer) {
+        final List<PendingMessage> replaced = new ArrayList<PendingMessage>();
+        replaced.add(this);
+        synchronized (this) {
+            if (mReplaced != null) {
+                replaced.addAll(mReplaced);
+                mReplaced = null;
+            }
+        }
+        synchronized (newer) {
+            if (!newer.mCompleted) {
+                if (newer.mReplaced == null) {
+                    newer.mReplaced = replaced;
+                } else {
+                    newer.mReplaced.addAll(replaced);
+                }
+                return;
+            }
+        }
+        // the newer one completed already, so this runs right away
+        newer.mFuture.whenComplete(new BiConsumer<String, Throwable>() {
+            @Override
+            public void accept(String messageId, Throwable error) {
+                for (PendingMessage message: replaced) {
+                    if (error == null) {
+                        message.acked();
+                    } else {
+                        message.failed(error);
+                    }
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+/**
+ * How urgent a downstream message is.
+ * <br>
+ * Every connection queues the messages of each priority separately
+ * and fills its window from those queues in proportion to their
+ * weights, see {@link DownstreamPipeline}. Thus a reply to a device
+ * doesn't wait behind a broadcast to millions of devices, while the
+ * broadcast still gets a share of the window.
+ */
+public enum Priority {
+
+    /**
+     * Messages a user is waiting for, e.g. replies to upstream messages.
+     */
+    HIGH(16),
+    /**
+     * Single messages. The default.
+     */
+    NORMAL(4),
+    /**
+     * Broadcasts and other mass traffic.
+     */
+    BULK(1);
+
+    private final int mWeight;
+
+    private Priority(int weight) {
+        mWeight = weight;
+    }
+
+    /**
+     * The share of the window this priority gets while messages of
+     * other priorities are waiting as well.
+     */
+    public int getWeight() {
+        return mWeight;
+    }
+}
@@ -16,26 +16,70 @@
 
 package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
 
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maps the action of an upstream message to the processor handling it.
+ * <br>
+ * Processors are created once and shared, thus looking one up is a
+ * single hash map access. Besides the actions of this sample, further
+ * actions can be added with {@link #register(String, PayloadProcessor)}
+ * or as {@link ActionProcessor}s via {@link ServiceLoader}.
+ */
 public class ProcessorFactory {
 
+    public static final Logger logger = Logger.getLogger(ProcessorFactory.class.getName());
+
     private static final String PACKAGE = "com.grokkingandroid.sampleapp.samples.gcm";
     private static final String ACTION_REGISTER = PACKAGE + ".REGISTER";
     private static final String ACTION_ECHO = PACKAGE + ".ECHO";
     private static final String ACTION_MESSAGE = PACKAGE + ".MESSAGE";
 
-    public static PayloadProcessor getProcessor(String action) {
-        if (action == null) {
-            throw new IllegalStateException("action must not be null");
-        }
-        if (action.equals(ACTION_REGISTER)) {
-            return new RegisterProcessor();
+    private static final ConcurrentMap<String, PayloadProcessor> sProcessors =
+            new ConcurrentHashMap<String, PayloadProcessor>();
+
+    static {
+        register(ACTION_REGISTER, new RegisterProcessor());
+        register(ACTION_ECHO, new EchoProcessor());
+        register(ACTION_MESSAGE, new MessageProcessor());
+        for (ActionProcessor processor: ServiceLoader.load(ActionProcessor.class)) {
+            register(processor.getAction(), processor);
+            logger.log(Level.INFO, "Registered {0} for {1}",
+                    new Object[] {processor.getClass().getName(), processor.getAction()});
         }
-        else if (action.equals(ACTION_ECHO)) {
-            return new EchoProcessor();
+    }
+
+    /**
+     * Sets the processor for an action, replacing the previous one.
+     * The processor is shared between all messages and threads.
+     */
+    public static void register(String action, PayloadProcessor processor) {
+        if (action == null || processor == null) {
+            throw new IllegalArgumentException("action and processor must not be null");
         }
-        else if (action.equals(ACTION_MESSAGE)) {
-            return new MessageProcessor();
+        sProcessors.put(action, processor);
+    }
+
+    /**
+     * Removes the processor of an action.
+     * @return the removed processor or null if there was none.
+     */
+    public static PayloadProcessor unregister(String action) {
+        return sProcessors.remove(action);
+    }
+
+    /**
+     * @return the processor of the action or null if the action is
+     * unknown (or null).
+     */
+    public static PayloadProcessor getProcessor(String action) {
+        if (action == null) {
+            return null;
         }
-        throw new IllegalStateException("Action " + action + " is unknown");
+        return sProcessors.get(action);
     }
 }
@@ -17,84 +17,223 @@ package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
 
 /**
  * This class acts as a DAO replacement. There is no
  * persistent state. As soon as you kill the server, all state will
  * be lost.
- * 
+ *
  * You have to take care of persisting messages as well as
  * recipients for proper apps!
+ * <br>
+ * All registrations are kept in concurrent hash based sets, so adding,
+ * removing and deduplicating a registration takes constant time and
+ * never blocks the whole DAO. Iterating returns each element at most
+ * once and never fails, even while other threads change the data.
  */
-public class PseudoDao {
-    
+public class PseudoDao implements RegistrationStore {
+
     private final static PseudoDao instance = new PseudoDao();
-    private final static Random sRandom = new Random();
-    private final Set<Integer> mMessageIds = new HashSet<Integer>();
-    private final Map<String, List<String>> mUserMap = new HashMap<String, List<String>>();
-    private final List<String> mRegisteredUsers = new ArrayList<String>();
-    private final Map<String, String> mNotificationKeyMap = new HashMap<String, String>();
-    
-    private PseudoDao() {        
-    }
-    
+    private final ConcurrentMap<String, Set<String>> mUserMap =
+            new ConcurrentHashMap<String, Set<String>>();
+    private final Set<String> mRegisteredUsers = ConcurrentHashMap.newKeySet();
+    /**
+     * Reverse index of mUserMap, to find the account of a registration id.
+     */
+    private final ConcurrentMap<String, String> mAccountOf =
+            new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, String> mNotificationKeyMap =
+            new ConcurrentHashMap<String, String>();
+    private final ConcurrentMap<String, String> mNotificationKeys =
+            new ConcurrentHashMap<String, String>();
+
+    /**
+     * Use {@link #getInstance()}. Other instances are only created to
+     * serve as the in-memory index of another store.
+     */
+    PseudoDao() {
+    }
+
     public static PseudoDao getInstance() {
         return instance;
     }
-    
-    public void addRegistration(String regId, String accountName) {
-        synchronized(mRegisteredUsers) {
-            if (!mRegisteredUsers.contains(regId)) {
-                mRegisteredUsers.add(regId);
-            }
-            if (accountName != null) {
-                List<String> regIdList = mUserMap.get(accountName);
-                if (regIdList == null) {
-                    regIdList = new ArrayList<String>();
-                    mUserMap.put(accountName, regIdList);
+
+    /**
+     * Adds a registration id, moving it to the given account if it
+     * belongs to another one. The move happens inside the compute() of
+     * mAccountOf, thus concurrent calls for the same id can't leave it
+     * in two accounts.
+     */
+    @Override
+    public void addRegistration(String regId, final String accountName) {
+        mAccountOf.compute(regId, new BiFunction<String, String, String>() {
+            @Override
+            public String apply(String id, String previousAccount) {
+                mRegisteredUsers.add(id);
+                if (accountName == null) {
+                    return previousAccount;
                 }
-                if (!regIdList.contains(regId)) {
-                    regIdList.add(regId);
+                if (previousAccount != null && !previousAccount.equals(accountName)) {
+                    removeFromAccount(previousAccount, id);
                 }
+                addToAccount(accountName, id);
+                return accountName;
             }
+        });
+    }
+
+    /**
+     * Removes a registration id, e.g. because CCS reported that the app
+     * has been uninstalled.
+     */
+    @Override
+    public void removeRegistration(String regId) {
+        remove(regId);
+    }
+
+    /**
+     * Replaces a registration id with the canonical id CCS reported for
+     * the device. The device keeps its account.
+     * <br>
+     * The account is taken in the same step that removes the old id, so
+     * an add of the old id that comes in between isn't lost.
+     */
+    @Override
+    public void updateRegistration(String oldRegId, String canonicalRegId) {
+        if (oldRegId.equals(canonicalRegId)) {
+            return;
         }
+        addRegistration(canonicalRegId, remove(oldRegId));
+    }
+
+    /**
+     * @return the account the registration id belonged to, or null.
+     */
+    private String remove(String regId) {
+        final String[] removedAccount = new String[1];
+        mAccountOf.compute(regId, new BiFunction<String, String, String>() {
+            @Override
+            public String apply(String id, String accountName) {
+                mRegisteredUsers.remove(id);
+                if (accountName != null) {
+                    removeFromAccount(accountName, id);
+                }
+                removedAccount[0] = accountName;
+                return null;
+            }
+        });
+        return removedAccount[0];
+    }
+
+    private void addToAccount(String accountName, final String regId) {
+        mUserMap.compute(accountName, new BiFunction<String, Set<String>, Set<String>>() {
+            @Override
+            public Set<String> apply(String account, Set<String> regIds) {
+                if (regIds == null) {
+                    regIds = ConcurrentHashMap.newKeySet();
+                }
+                regIds.add(regId);
+                return regIds;
+            }
+        });
+    }
+
+    private void removeFromAccount(String accountName, final String regId) {
+        mUserMap.computeIfPresent(accountName, new BiFunction<String, Set<String>, Set<String>>() {
+            @Override
+            public Set<String> apply(String account, Set<String> regIds) {
+                regIds.remove(regId);
+                return regIds.isEmpty() ? null : regIds;
+            }
+        });
     }
-    
+
+    /**
+     * Returns a snapshot of all registration ids.
+     */
+    @Override
     public List<String> getAllRegistrationIds() {
-        return Collections.unmodifiableList(mRegisteredUsers);
+        return Collections.unmodifiableList(new ArrayList<String>(mRegisteredUsers));
+    }
+
+    /**
+     * Iterates over all registration ids without copying them. Ids added
+     * or removed while iterating might or might not show up.
+     */
+    @Override
+    public Iterable<String> registrationIds() {
+        return Collections.unmodifiableSet(mRegisteredUsers);
     }
-    
+
+    /**
+     * Iterates over the registration ids of an account without copying
+     * them.
+     */
+    @Override
+    public Iterable<String> registrationIdsForAccount(String account) {
+        Set<String> regIds = mUserMap.get(account);
+        if (regIds == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableSet(regIds);
+    }
+
+    /**
+     * Returns a snapshot of the registration ids of an account.
+     */
+    @Override
     public List<String> getAllRegistrationIdsForAccount(String account) {
-        List<String> regIds = mUserMap.get(account);
+        Set<String> regIds = mUserMap.get(account);
         if (regIds != null) {
-           return Collections.unmodifiableList(regIds);
+           return Collections.unmodifiableList(new ArrayList<String>(regIds));
         }
         return null;
     }
-    
+
+    @Override
+    public String getAccount(String regId) {
+        return mAccountOf.get(regId);
+    }
+
+    @Override
     public String getNotificationKeyName(String accountName) {
         return mNotificationKeyMap.get(accountName);
     }
-    
+
+    @Override
     public void storeNotificationKeyName(String accountName, String notificationKeyName) {
         mNotificationKeyMap.put(accountName, notificationKeyName);
     }
-    
+
+    /**
+     * Returns the notification key of the account's device group, if one
+     * has been stored. Messages sent to it reach all devices of the group.
+     */
+    @Override
+    public String getNotificationKey(String accountName) {
+        return mNotificationKeys.get(accountName);
+    }
+
+    @Override
+    public void storeNotificationKey(String accountName, String notificationKey) {
+        mNotificationKeys.put(accountName, notificationKey);
+    }
+
+    @Override
     public Set<String> getAccounts() {
         return Collections.unmodifiableSet(mUserMap.keySet());
     }
-    
+
+    /**
+     * Returns a unique message id.
+     * @see MessageIdGenerator
+     */
     public String getUniqueMessageId() {
-        int nextRandom = sRandom.nextInt();
-        while (mMessageIds.contains(nextRandom)) {
-            nextRandom = sRandom.nextInt();
-        }
-        return Integer.toString(nextRandom);
+        return MessageIdGenerator.getInstance().nextId();
     }
 }
@@ -0,0 +1,355 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Limits the rate of downstream messages per device and for the whole
+ * sender, before they take up a slot in the window of a connection.
+ * <br>
+ * Both limits are token buckets, implemented with the generic cell rate
+ * algorithm (GCRA): a bucket is a single long, the time at which it is
+ * full again, and a message takes a token with one compareAndSet. The
+ * device buckets live in two fixed size generations of an open
+ * addressing table, keyed by a hash of the registration id. A bucket
+ * that has been full for a while carries no information, so the older
+ * generation is simply dropped once its buckets are full again.
+ * <br>
+ * A message over the limit is delayed until a token is available. If
+ * an older message to the same device with the same collapse key is
+ * still waiting, the new one takes its place, see
+ * {@link PendingMessage#supersededBy(PendingMessage)}. A message that
+ * would have to wait longer than the maximum delay fails with
+ * DEVICE_MESSAGE_RATE_EXCEEDED, just like CCS would reject it.
+ */
+public class RateLimiter {
+
+    public static final double DEFAULT_DEVICE_RATE = 1;
+    public static final int DEFAULT_DEVICE_BURST = 20;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 60000;
+    public static final int DEFAULT_CAPACITY = 1 << 18;
+
+    private static final AtomicInteger sThreadCount = new AtomicInteger();
+
+    private final RetryScheduler.Resender mSender;
+    private final long mDeviceInterval;
+    private final long mDeviceTolerance;
+    private final long mGlobalInterval;
+    private final long mGlobalTolerance;
+    private final long mMaxDelayNanos;
+    private final int mCapacity;
+    private final long mGenerationNanos;
+    private final long mOriginNanos = System.nanoTime();
+    private final AtomicLongArray mGlobalBucket = new AtomicLongArray(1);
+    private final ConcurrentMap<String, PendingMessage> mWaiting =
+            new ConcurrentHashMap<String, PendingMessage>();
+    /**
+     * Delayed messages without a collapse id. Those with one are in
+     * mWaiting.
+     */
+    private final Set<PendingMessage> mScheduled = ConcurrentHashMap.newKeySet();
+    private final ScheduledThreadPoolExecutor mExecutor;
+    private volatile Generation mCurrent;
+    private volatile Generation mPrevious;
+
+    private final AtomicLong mDelayed = new AtomicLong();
+    private final AtomicLong mMerged = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mEarlyRotations = new AtomicLong();
+
+    /**
+     * Key hashes at even, bucket states at odd indexes.
+     */
+    private static class Generation {
+        final AtomicLongArray mEntries;
+        final AtomicInteger mSize = new AtomicInteger();
+        final long mStartNanos;
+
+        Generation(int capacity, long startNanos) {
+            mEntries = new AtomicLongArray(capacity * 2);
+            mStartNanos = startNanos;
+        }
+
+        /**
+         * @return the index of the bucket or -1 if the key is missing and
+         * insert is false.
+         */
+        int indexOf(long hash, boolean insert) {
+            int mask = mEntries.length() / 2 - 1;
+            for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+                long key = mEntries.get(2 * i);
+                if (key == hash) {
+                    return 2 * i + 1;
+                }
+                if (key == 0) {
+                    if (!insert) {
+                        return -1;
+                    }
+                    if (mEntries.compareAndSet(2 * i, 0, hash)) {
+                        mSize.incrementAndGet();
+                        return 2 * i + 1;
+                    }
+                    // somebody else took the slot; check it again
+                    i = (i - 1) & mask;
+                }
+            }
+        }
+    }
+
+    public RateLimiter(RetryScheduler.Resender sender) {
+        this(sender, DEFAULT_DEVICE_RATE, DEFAULT_DEVICE_BURST, 0, 0, DEFAULT_MAX_DELAY_MILLIS,
+                DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param sender Sends messages once they are within the limits.
+     * @param deviceRate Messages per second per registration id. 0 turns
+     * the device limit off.
+     * @param deviceBurst How many messages a device may get at once.
+     * @param globalRate Messages per second for the whole sender. 0 turns
+     * the global limit off.
+     * @param globalBurst How many messages may be sent at once.
+     * @param maxDelayMillis Messages that would have to wait longer fail.
+     * @param capacity Devices tracked per generation, rounded up to a
+     * power of two. Uses 32 bytes per device.
+     */
+    public RateLimiter(RetryScheduler.Resender sender, double deviceRate, int deviceBurst,
+            double globalRate, int globalBurst, long maxDelayMillis, int capacity) {
+        mSender = sender;
+        mDeviceInterval = deviceRate > 0 ? (long) (1e9 / deviceRate) : 0;
+        mDeviceTolerance = mDeviceInterval * Math.max(0, deviceBurst - 1);
+        mGlobalInterval = globalRate > 0 ? (long) (1e9 / globalRate) : 0;
+        mGlobalTolerance = mGlobalInterval * Math.max(0, globalBurst - 1);
+        mMaxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        mCapacity = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        // after that long, even the emptiest bucket is full again
+        mGenerationNanos = Math.max(TimeUnit.SECONDS.toNanos(1),
+                mDeviceTolerance + mDeviceInterval + mMaxDelayNanos);
+        mCurrent = new Generation(mCapacity, now());
+        mPrevious = new Generation(mCapacity, now());
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ccs-rate-limiter-" + sThreadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Sends the message now if it is within the limits, delays, merges
+     * or fails it otherwise.
+     */
+    public void submit(final PendingMessage msg) {
+        final String mergeKey = msg.getCollapseId();
+        if (mergeKey != null) {
+            PendingMessage waiting = mWaiting.get(mergeKey);
+            if (waiting != null && mWaiting.replace(mergeKey, waiting, msg)) {
+                // takes over the slot of the waiting message
+                mMerged.incrementAndGet();
+                waiting.supersededBy(msg);
+                return;
+            }
+        }
+        long now = now();
+        long delay = 0;
+        if (mDeviceInterval > 0 && msg.getTo() != null) {
+            delay = reserveDeviceToken(msg.getTo(), now);
+        }
+        if (delay >= 0 && mGlobalInterval > 0) {
+            long globalDelay = reserve(mGlobalBucket, 0, 0, now + delay, mGlobalInterval,
+                    mGlobalTolerance, mMaxDelayNanos - delay);
+            delay = globalDelay < 0 ? -1 : delay + globalDelay;
+        }
+        if (delay < 0) {
+            mRejected.incrementAndGet();
+            msg.failed(new NackException(msg.getMessageId(),
+                    RetryScheduler.ERROR_DEVICE_MESSAGE_RATE_EXCEEDED, "Rate limited locally"));
+            return;
+        }
+        if (delay == 0) {
+            mSender.resend(msg);
+            return;
+        }
+        mDelayed.incrementAndGet();
+        Runnable release;
+        if (mergeKey != null && mWaiting.putIfAbsent(mergeKey, msg) == null) {
+            release = new Runnable() {
+                @Override
+                public void run() {
+                    // might have been replaced by a newer message meanwhile,
+                    // or taken by shutdown()
+                    PendingMessage waiting = mWaiting.remove(mergeKey);
+                    if (waiting != null) {
+                        mSender.resend(waiting);
+                    }
+                }
+            };
+        } else {
+            mScheduled.add(msg);
+            release = new Runnable() {
+                @Override
+                public void run() {
+                    if (mScheduled.remove(msg)) {
+                        mSender.resend(msg);
+                    }
+                }
+            };
+        }
+        try {
+            mExecutor.schedule(release, delay, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            // shut down meanwhile: send it unless shutdown() handed it back
+            if (mScheduled.remove(msg) || (mergeKey != null && mWaiting.remove(mergeKey, msg))) {
+                mSender.resend(msg);
+            }
+        }
+    }
+
+    /**
+     * The number of messages currently delayed, not counting merged ones.
+     */
+    public int getWaitingCount() {
+        return mScheduled.size() + mWaiting.size();
+    }
+
+    /**
+     * The number of messages that had to wait for a token.
+     */
+    public long getDelayedCount() {
+        return mDelayed.get();
+    }
+
+    /**
+     * The number of waiting messages replaced by a newer one with the
+     * same recipient and collapse key.
+     */
+    public long getMergedCount() {
+        return mMerged.get();
+    }
+
+    /**
+     * The number of messages failed because they would have waited
+     * longer than the maximum delay.
+     */
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * How often the device table filled up before its buckets were full
+     * again. Devices forgotten that way may get another burst.
+     */
+    public long getEarlyRotationCount() {
+        return mEarlyRotations.get();
+    }
+
+    /**
+     * Stops the timer.
+     * @return the messages still delayed. They have not been completed,
+     * so the caller has to send or fail them.
+     */
+    public List<PendingMessage> shutdown() {
+        mExecutor.shutdownNow();
+        List<PendingMessage> delayed = new ArrayList<PendingMessage>();
+        for (PendingMessage msg: mScheduled) {
+            if (mScheduled.remove(msg)) {
+                delayed.add(msg);
+            }
+        }
+        for (String mergeKey: mWaiting.keySet()) {
+            PendingMessage msg = mWaiting.remove(mergeKey);
+            if (msg != null) {
+                delayed.add(msg);
+            }
+        }
+        return delayed;
+    }
+
+    private long reserveDeviceToken(String to, long now) {
+        // the message id is not part of the key
+        long hash = UpstreamDeduplicator.hash(to, null);
+        Generation current = mCurrent;
+        if (now - current.mStartNanos >= mGenerationNanos
+                || current.mSize.get() > mCapacity / 2) {
+            rotate(current, now);
+            current = mCurrent;
+        }
+        int index = current.indexOf(hash, true);
+        Generation previous = mPrevious;
+        int previousIndex = previous.indexOf(hash, false);
+        long inherited = previousIndex < 0 ? 0 : previous.mEntries.get(previousIndex);
+        return reserve(current.mEntries, index, inherited, now, mDeviceInterval,
+                mDeviceTolerance, mMaxDelayNanos);
+    }
+
+    private synchronized void rotate(Generation expected, long now) {
+        if (mCurrent != expected) {
+            // another thread was faster
+            return;
+        }
+        if (now - expected.mStartNanos < mGenerationNanos) {
+            mEarlyRotations.incrementAndGet();
+        }
+        mPrevious = expected;
+        mCurrent = new Generation(mCapacity, now);
+    }
+
+    /**
+     * Takes a token from a bucket, possibly one that only becomes
+     * available in the future.
+     *
+     * @param buckets Holds the bucket: the time at which it is full again
+     * (the "theoretical arrival time" of GCRA) or 0 if it is new.
+     * @param inherited The state of a new bucket, 0 for a full one.
+     * @param at The time the message would be sent.
+     * @return the delay until the token is available or -1 if that is
+     * longer than maxDelay. No token is taken in that case.
+     */
+    static long reserve(AtomicLongArray buckets, int index, long inherited, long at,
+            long interval, long tolerance, long maxDelay) {
+        while (true) {
+            long tat = buckets.get(index);
+            long current = tat == 0 ? inherited : tat;
+            long emit = Math.max(at, current - tolerance);
+            if (emit - at > maxDelay) {
+                return -1;
+            }
+            long next = Math.max(current, emit) + interval;
+            if (buckets.compareAndSet(index, tat, next)) {
+                return emit - at;
+            }
+        }
+    }
+
+    // never 0, since 0 marks a new bucket
+    private long now() {
+        return System.nanoTime() - mOriginNanos + 1;
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+/**
+ * Fast path for acks and nacks, which make up most of the inbound
+ * traffic.
+ * <br>
+ * Acks and nacks are flat JSON objects with a handful of string values.
+ * Instead of parsing them into a map, this scanner walks the raw JSON
+ * once and only copies the values the client needs. Anything it doesn't
+ * expect (nested values, escaped strings, other message types) makes it
+ * give up, and the message is handed to the full {@link MessageCodec}.
+ */
+public class ReceiptScanner {
+
+    private ReceiptScanner() {
+    }
+
+    /**
+     * Scans an ack or nack.
+     *
+     * @return The message, or null if the JSON is no plain ack or nack
+     * and has to be decoded by a {@link MessageCodec}.
+     */
+    public static InboundMessage scan(String json) {
+        int length = json.length();
+        int i = skipWhitespace(json, 0);
+        if (i >= length || json.charAt(i) != '{') {
+            return null;
+        }
+        i++;
+        InboundMessage msg = new InboundMessage();
+        while (true) {
+            i = skipWhitespace(json, i);
+            if (i >= length) {
+                return null;
+            }
+            char c = json.charAt(i);
+            if (c == '}') {
+                break;
+            }
+            if (c == ',') {
+                i++;
+                continue;
+            }
+            if (c != '"') {
+                return null;
+            }
+            int keyStart = i + 1;
+            int keyEnd = endOfString(json, keyStart);
+            if (keyEnd < 0) {
+                return null;
+            }
+            i = skipWhitespace(json, keyEnd + 1);
+            if (i >= length || json.charAt(i) != ':') {
+                return null;
+            }
+            i = skipWhitespace(json, i + 1);
+            if (i >= length) {
+                return null;
+            }
+            c = json.charAt(i);
+            if (c == '"') {
+                int valueStart = i + 1;
+                int valueEnd = endOfString(json, valueStart);
+                if (valueEnd < 0 || !store(msg, json, keyStart, keyEnd, valueStart, valueEnd)) {
+                    return null;
+                }
+                i = valueEnd + 1;
+            } else if (c == '{' || c == '[') {
+                return null;
+            } else {
+                // number, true, false or null; none of the fields we need
+                if (isKnownKey(json, keyStart, keyEnd)) {
+                    return null;
+                }
+                while (i < length && json.charAt(i) != ',' && json.charAt(i) != '}') {
+                    i++;
+                }
+            }
+        }
+        if (msg.mMessageType == null || msg.mMessageId == null) {
+            return null;
+        }
+        return msg;
+    }
+
+    /**
+     * Copies a value into the message.
+     * @return false if the message is no ack or nack.
+     */
+    private static boolean store(InboundMessage msg, String json, int keyStart, int keyEnd,
+            int valueStart, int valueEnd) {
+        if (matches(json, keyStart, keyEnd, "message_type")) {
+            if (matches(json, valueStart, valueEnd, InboundMessage.TYPE_ACK)) {
+                msg.mMessageType = InboundMessage.TYPE_ACK;
+            } else if (matches(json, valueStart, valueEnd, InboundMessage.TYPE_NACK)) {
+                msg.mMessageType = InboundMessage.TYPE_NACK;
+            } else {
+                return false;
+            }
+        } else if (matches(json, keyStart, keyEnd, "message_id")) {
+            msg.mMessageId = json.substring(valueStart, valueEnd);
+        } else if (matches(json, keyStart, keyEnd, "from")) {
+            msg.mFrom = json.substring(valueStart, valueEnd);
+        } else if (matches(json, keyStart, keyEnd, "registration_id")) {
+            msg.mRegistrationId = json.substring(valueStart, valueEnd);
+        } else if (matches(json, keyStart, keyEnd, "error")) {
+            msg.mError = json.substring(valueStart, valueEnd);
+        } else if (matches(json, keyStart, keyEnd, "error_description")) {
+            msg.mErrorDescription = json.substring(valueStart, valueEnd);
+        }
+        return true;
+    }
+
+    private static boolean isKnownKey(String json, int keyStart, int keyEnd) {
+        return matches(json, keyStart, keyEnd, "message_type")
+                || matches(json, keyStart, keyEnd, "message_id")
+                || matches(json, keyStart, keyEnd, "from")
+                || matches(json, keyStart, keyEnd, "registration_id")
+                || matches(json, keyStart, keyEnd, "error")
+                || matches(json, keyStart, keyEnd, "error_description");
+    }
+
+    private static boolean matches(String json, int start, int end, String expected) {
+        return end - start == expected.length()
+                && json.regionMatches(start, expected, 0, expected.length());
+    }
+
+    /**
+     * Returns the index of the closing quote, or -1 if the string isn't
+     * terminated or contains escapes.
+     */
+    private static int endOfString(String json, int start) {
+        for (int i = start; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                return i;
+            }
+            if (c == '\\') {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(String json, int i) {
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -24,7 +24,7 @@ public class RegisterProcessor implements PayloadProcessor{
     @Override
     public void handleMessage(CcsMessage msg) {
         String accountName = msg.getPayload().get("account");
-        PseudoDao.getInstance().addRegistration(msg.getFrom(), accountName);
+        DaoFactory.getRegistrationStore().addRegistration(msg.getFrom(), accountName);
     }
 
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Stores the registration ids of the devices, the accounts they belong
+ * to and the notification keys of the accounts' device groups.
+ * <br>
+ * Implementations must be thread safe. Use
+ * {@link DaoFactory#setRegistrationStore(RegistrationStore)} to
+ * replace the default in-memory {@link PseudoDao}.
+ */
+public interface RegistrationStore {
+
+    void addRegistration(String regId, String accountName);
+
+    /**
+     * Removes a registration id, e.g. because CCS reported that the app
+     * has been uninstalled.
+     */
+    void removeRegistration(String regId);
+
+    /**
+     * Replaces a registration id with the canonical id CCS reported for
+     * the device. The device keeps its account.
+     */
+    void updateRegistration(String oldRegId, String canonicalRegId);
+
+    /**
+     * Returns a snapshot of all registration ids.
+     */
+    List<String> getAllRegistrationIds();
+
+    /**
+     * Iterates over all registration ids without copying them.
+     */
+    Iterable<String> registrationIds();
+
+    /**
+     * Returns a snapshot of the registration ids of an account or null
+     * if the account is unknown.
+     */
+    List<String> getAllRegistrationIdsForAccount(String account);
+
+    /**
+     * Iterates over the registration ids of an account without copying
+     * them.
+     */
+    Iterable<String> registrationIdsForAccount(String account);
+
+    /**
+     * Returns the account of a registration id or null if it has none.
+     */
+    String getAccount(String regId);
+
+    String getNotificationKeyName(String accountName);
+
+    void storeNotificationKeyName(String accountName, String notificationKeyName);
+
+    /**
+     * Returns the notification key of the account's device group, if one
+     * has been stored. Messages sent to it reach all devices of the group.
+     */
+    String getNotificationKey(String accountName);
+
+    void storeNotificationKey(String accountName, String notificationKey);
+
+    Set<String> getAccounts();
+}
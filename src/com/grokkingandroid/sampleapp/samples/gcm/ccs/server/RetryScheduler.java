@@ -0,0 +1,191 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resends downstream messages that CCS rejected with a temporary error.
+ * <br>
+ * Retries are delayed using exponential backoff with jitter. Messages
+ * that fail with a permanent error (e.g. BAD_REGISTRATION) or that
+ * have used up their retry budget are not resent.
+ */
+public class RetryScheduler {
+
+    public static final Logger logger = Logger.getLogger(RetryScheduler.class.getName());
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 60000;
+
+    public static final String ERROR_SERVICE_UNAVAILABLE = "SERVICE_UNAVAILABLE";
+    public static final String ERROR_INTERNAL_SERVER_ERROR = "INTERNAL_SERVER_ERROR";
+    public static final String ERROR_DEVICE_MESSAGE_RATE_EXCEEDED = "DEVICE_MESSAGE_RATE_EXCEEDED";
+    public static final String ERROR_TOPICS_MESSAGE_RATE_EXCEEDED = "TOPICS_MESSAGE_RATE_EXCEEDED";
+    public static final String ERROR_CONNECTION_DRAINING = "CONNECTION_DRAINING";
+    /**
+     * Not sent by CCS. Used for messages that got neither an ack nor a
+     * nack in time, see {@link DownstreamPipeline#expire(long)}.
+     */
+    public static final String ERROR_ACK_TIMEOUT = "ACK_TIMEOUT";
+
+    private static final Set<String> RETRYABLE_ERRORS = Collections.unmodifiableSet(
+            new HashSet<String>(Arrays.asList(
+                    ERROR_SERVICE_UNAVAILABLE,
+                    ERROR_INTERNAL_SERVER_ERROR,
+                    ERROR_DEVICE_MESSAGE_RATE_EXCEEDED,
+                    ERROR_TOPICS_MESSAGE_RATE_EXCEEDED,
+                    ERROR_CONNECTION_DRAINING,
+                    ERROR_ACK_TIMEOUT)));
+
+    /**
+     * Gets called once the backoff of a message has elapsed.
+     */
+    public interface Resender {
+        void resend(PendingMessage msg);
+    }
+
+    private final Resender mResender;
+    private final int mMaxAttempts;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final ScheduledExecutorService mExecutor;
+    /**
+     * Messages waiting for their backoff to elapse.
+     */
+    private final Set<PendingMessage> mWaiting = ConcurrentHashMap.newKeySet();
+
+    public RetryScheduler(Resender resender) {
+        this(resender, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS,
+                DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    /**
+     * @param resender Puts the message back into a send pipeline.
+     * @param maxAttempts How often a message is sent at most, including
+     * the first attempt.
+     * @param initialBackoffMillis Delay before the first retry.
+     * @param maxBackoffMillis Upper bound for the delay of later retries.
+     */
+    public RetryScheduler(Resender resender, int maxAttempts, long initialBackoffMillis,
+            long maxBackoffMillis) {
+        mResender = resender;
+        mMaxAttempts = maxAttempts;
+        mInitialBackoffMillis = initialBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ccs-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Whether a NACK with this error code is worth another try. Errors
+     * like BAD_REGISTRATION or INVALID_JSON will fail again.
+     */
+    public static boolean isRetryable(String errorCode) {
+        return errorCode != null && RETRYABLE_ERRORS.contains(errorCode);
+    }
+
+    /**
+     * Schedules another attempt for the message.
+     *
+     * @return false if the error is permanent or the message has used up
+     * its retry budget. The caller is responsible for failing the message
+     * in that case.
+     */
+    public boolean retry(final PendingMessage msg, String errorCode) {
+        if (!isRetryable(errorCode) || msg.getAttempts() >= mMaxAttempts) {
+            return false;
+        }
+        long delay = computeBackoff(msg.getAttempts(), errorCode);
+        logger.log(Level.FINE, "Retrying {0} in {1} ms ({2})",
+                new Object[] {msg.getMessageId(), delay, errorCode});
+        mWaiting.add(msg);
+        try {
+            mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // shutdown() might have taken the message already
+                    if (mWaiting.remove(msg)) {
+                        mResender.resend(msg);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return !mWaiting.remove(msg);
+        }
+        return true;
+    }
+
+    /**
+     * Exponential backoff with "equal jitter": half of the delay is fixed,
+     * the other half random. This spreads retries of a burst of nacks.
+     * <br>
+     * A draining connection is no reason to wait, those messages are
+     * resent right away on another connection. For rate limited devices
+     * the backoff starts higher.
+     */
+    long computeBackoff(int attempts, String errorCode) {
+        if (ERROR_CONNECTION_DRAINING.equals(errorCode)) {
+            return 0;
+        }
+        long base = mInitialBackoffMillis;
+        if (ERROR_DEVICE_MESSAGE_RATE_EXCEEDED.equals(errorCode)
+                || ERROR_TOPICS_MESSAGE_RATE_EXCEEDED.equals(errorCode)) {
+            base *= 4;
+        }
+        int shift = Math.min(Math.max(attempts - 1, 0), 30);
+        long backoff = Math.min(mMaxBackoffMillis, base << shift);
+        long half = backoff / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    /**
+     * Stops scheduling retries.
+     * @return the messages still waiting for their backoff. They have not
+     * been completed, so the caller has to resend or fail them.
+     */
+    public List<PendingMessage> shutdown() {
+        mExecutor.shutdownNow();
+        List<PendingMessage> waiting = new ArrayList<PendingMessage>();
+        for (PendingMessage msg: mWaiting) {
+            if (mWaiting.remove(msg)) {
+                waiting.add(msg);
+            }
+        }
+        return waiting;
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import org.jivesoftware.smack.XMPPConnection;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Collects the stanzas (acks, nacks and downstream messages) written to
+ * one connection and sends them as one packet.
+ * <br>
+ * Smack writes and flushes every packet on its own, which means one
+ * socket write and one TLS record per stanza. Under heavy upstream
+ * traffic most of those are tiny acks. This class buffers stanzas
+ * until either the oldest one has waited for the maximum delay or the
+ * buffer reaches its maximum size, and then sends all of them in one
+ * {@link CcsClient.GcmStanza}. CCS reads them as separate stanzas.
+ * <br>
+ * The delay is the only latency added to an ack; keep it far below
+ * the time CCS waits for acks before it redelivers a message. A delay
+ * of zero sends every stanza right away.
+ */
+public class StanzaCoalescer {
+
+    public static final Logger logger = Logger.getLogger(StanzaCoalescer.class.getName());
+
+    public static final long DEFAULT_MAX_DELAY_MICROS = 1000;
+
+    /**
+     * The largest payload of one TLS record.
+     */
+    public static final int DEFAULT_MAX_CHARS = 16 * 1024;
+
+    private static final AtomicInteger sThreadCount = new AtomicInteger();
+
+    private final XMPPConnection mConnection;
+    private final long mMaxDelayNanos;
+    private final int mMaxChars;
+    private final Object mLock = new Object();
+    private final Thread mFlusher;
+    private final AtomicLong mStanzas = new AtomicLong();
+    private final AtomicLong mFlushes = new AtomicLong();
+    private final AtomicLong mLost = new AtomicLong();
+    private StringBuilder mBuffer;
+    private int mBufferedStanzas = 0;
+    private long mOldestNanos;
+    private volatile boolean mRunning = true;
+
+    public StanzaCoalescer(XMPPConnection connection) {
+        this(connection, DEFAULT_MAX_DELAY_MICROS, DEFAULT_MAX_CHARS);
+    }
+
+    /**
+     * @param connection The connection to write to.
+     * @param maxDelayMicros How long a stanza may wait for others. Zero
+     * disables coalescing.
+     * @param maxChars Buffered stanzas are sent right away once they
+     * are this long.
+     */
+    public StanzaCoalescer(XMPPConnection connection, long maxDelayMicros, int maxChars) {
+        mConnection = connection;
+        mMaxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        mMaxChars = maxChars;
+        mBuffer = new StringBuilder(maxChars + 1024);
+        if (mMaxDelayNanos > 0) {
+            mFlusher = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    flushExpired();
+                }
+            }, "ccs-coalescer-" + sThreadCount.incrementAndGet());
+            mFlusher.setDaemon(true);
+            mFlusher.start();
+        } else {
+            mFlusher = null;
+        }
+    }
+
+    /**
+     * Queues a stanza for sending.
+     * @throws IllegalStateException if the connection is not connected
+     * or this coalescer has been closed. Stanzas already buffered are
+     * lost if the connection breaks before they are flushed.
+     */
+    public void send(String stanza) {
+        if (!mConnection.isConnected()) {
+            throw new IllegalStateException("Not connected to server.");
+        }
+        mStanzas.incrementAndGet();
+        if (mFlusher == null) {
+            mFlushes.incrementAndGet();
+            mConnection.sendPacket(new CcsClient.GcmStanza(stanza));
+            return;
+        }
+        synchronized (mLock) {
+            if (!mRunning) {
+                throw new IllegalStateException("Coalescer has been closed");
+            }
+            if (mBufferedStanzas == 0) {
+                mOldestNanos = System.nanoTime();
+                mLock.notify();
+            }
+            mBuffer.append(stanza);
+            mBufferedStanzas++;
+            if (mBuffer.length() >= mMaxChars) {
+                flushLocked();
+            }
+        }
+    }
+
+    /**
+     * Sends all buffered stanzas now.
+     */
+    public void flush() {
+        synchronized (mLock) {
+            flushLocked();
+        }
+    }
+
+    /**
+     * Flushes the buffer and stops the flusher thread.
+     */
+    public void close() {
+        synchronized (mLock) {
+            mRunning = false;
+            flushLocked();
+            mLock.notify();
+        }
+    }
+
+    /**
+     * The number of stanzas passed to {@link #send(String)}.
+     */
+    public long getStanzaCount() {
+        return mStanzas.get();
+    }
+
+    /**
+     * The number of packets written to the connection. Divide the
+     * stanza count by this to get the average batch size.
+     */
+    public long getFlushCount() {
+        return mFlushes.get();
+    }
+
+    /**
+     * The number of stanzas that couldn't be written because the
+     * connection was gone by the time they were flushed.
+     */
+    public long getLostCount() {
+        return mLost.get();
+    }
+
+    private void flushExpired() {
+        synchronized (mLock) {
+            while (mRunning) {
+                try {
+                    if (mBufferedStanzas == 0) {
+                        mLock.wait();
+                        continue;
+                    }
+                    long waitNanos = mMaxDelayNanos - (System.nanoTime() - mOldestNanos);
+                    if (waitNanos > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(mLock, waitNanos);
+                        continue;
+                    }
+                } catch (InterruptedException e) {
+                    // close() ends the loop
+                    continue;
+                }
+                flushLocked();
+            }
+        }
+    }
+
+    // Sending while holding the lock keeps the stanzas in order. Smack's
+    // sendPacket() only queues the packet for its writer thread.
+    private void flushLocked() {
+        if (mBufferedStanzas == 0) {
+            return;
+        }
+        String batch = mBuffer.toString();
+        int count = mBufferedStanzas;
+        mBuffer.setLength(0);
+        mBufferedStanzas = 0;
+        try {
+            mConnection.sendPacket(new CcsClient.GcmStanza(batch));
+            mFlushes.incrementAndGet();
+        } catch (RuntimeException e) {
+            mLost.addAndGet(count);
+            logger.log(Level.WARNING, "Couldn't send " + count + " stanzas", e);
+        }
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Codec that writes GCM messages straight into a reusable buffer and
+ * parses received messages directly into the fields of an
+ * {@link InboundMessage}.
+ * <br>
+ * Compared to {@link JsonSimpleCodec} no intermediate maps are built
+ * and a downstream stanza is written in one pass. Each thread reuses
+ * its own buffer, so encoding doesn't need any locking.
+ * <br>
+ * The characters &lt;, &gt; and &amp; are written as unicode escapes.
+ * That's valid JSON and keeps the stanza valid XML, no matter what the
+ * payload contains.
+ */
+public class StreamingJsonCodec implements MessageCodec {
+
+    static final String STANZA_PREFIX = "<message><" + CcsClient.GCM_ELEMENT_NAME
+            + " xmlns=\"" + CcsClient.GCM_NAMESPACE + "\">";
+    static final String STANZA_SUFFIX = "</" + CcsClient.GCM_ELEMENT_NAME + "></message>";
+
+    /**
+     * Buffers that grew beyond this size are not kept for the next use.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<StringBuilder> sBuffer = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(1024);
+        }
+    };
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Returns the empty buffer of the calling thread.
+     */
+    static StringBuilder buffer() {
+        StringBuilder buf = sBuffer.get();
+        if (buf.capacity() > MAX_RETAINED_CAPACITY) {
+            buf = new StringBuilder(1024);
+            sBuffer.set(buf);
+        }
+        buf.setLength(0);
+        return buf;
+    }
+
+    @Override
+    public String encodeMessage(String to, String messageId, Map<String, String> payload,
+            String collapseKey, Long timeToLive, Boolean delayWhileIdle) {
+        StringBuilder buf = buffer();
+        writeMessage(buf, to, messageId, payload, collapseKey, timeToLive, delayWhileIdle);
+        return buf.toString();
+    }
+
+    @Override
+    public String encodeMessageStanza(String to, String messageId, Map<String, String> payload,
+            String collapseKey, Long timeToLive, Boolean delayWhileIdle) {
+        StringBuilder buf = buffer();
+        buf.append(STANZA_PREFIX);
+        writeMessage(buf, to, messageId, payload, collapseKey, timeToLive, delayWhileIdle);
+        buf.append(STANZA_SUFFIX);
+        return buf.toString();
+    }
+
+    @Override
+    public String encodeAck(String to, String messageId) {
+        return encodeReceipt("ack", to, messageId);
+    }
+
+    @Override
+    public String encodeNack(String to, String messageId) {
+        return encodeReceipt("nack", to, messageId);
+    }
+
+    private String encodeReceipt(String type, String to, String messageId) {
+        StringBuilder buf = buffer();
+        buf.append("{\"message_type\":\"").append(type).append('"');
+        writeKey(buf, "to", false);
+        writeString(buf, to);
+        writeKey(buf, "message_id", false);
+        writeString(buf, messageId);
+        buf.append('}');
+        return buf.toString();
+    }
+
+    @Override
+    public String encodeStanza(String json) {
+        StringBuilder buf = buffer();
+        buf.append(STANZA_PREFIX).append(json).append(STANZA_SUFFIX);
+        return buf.toString();
+    }
+
+    @Override
+    public InboundMessage decode(String json) {
+        return new Parser(json).parseMessage();
+    }
+
+    static void writeMessage(StringBuilder buf, String to, String messageId,
+            Map<String, String> payload, String collapseKey, Long timeToLive,
+            Boolean delayWhileIdle) {
+        buf.append('{');
+        boolean first = true;
+        if (to != null) {
+            first = writeKey(buf, "to", first);
+            writeString(buf, to);
+        }
+        if (messageId != null) {
+            first = writeKey(buf, "message_id", first);
+            writeString(buf, messageId);
+        }
+        first = writeOptions(buf, first, collapseKey, timeToLive, delayWhileIdle);
+        if (payload != null) {
+            writeKey(buf, "data", first);
+            writeStringMap(buf, payload);
+        }
+        buf.append('}');
+    }
+
+    /**
+     * Writes collapse_key, time_to_live and delay_while_idle, as far as
+     * they are set.
+     * @return whether the next key is still the first one.
+     */
+    static boolean writeOptions(StringBuilder buf, boolean first, String collapseKey,
+            Long timeToLive, Boolean delayWhileIdle) {
+        if (collapseKey != null) {
+            first = writeKey(buf, "collapse_key", first);
+            writeString(buf, collapseKey);
+        }
+        if (timeToLive != null) {
+            first = writeKey(buf, "time_to_live", first);
+            buf.append(timeToLive.longValue());
+        }
+        if (delayWhileIdle != null && delayWhileIdle) {
+            first = writeKey(buf, "delay_while_idle", first);
+            buf.append("true");
+        }
+        return first;
+    }
+
+    /**
+     * Writes the key (and a leading comma unless it's the first key).
+     * @return always false, for chaining.
+     */
+    static boolean writeKey(StringBuilder buf, String key, boolean first) {
+        if (!first) {
+            buf.append(',');
+        }
+        buf.append('"').append(key).append("\":");
+        return false;
+    }
+
+    static void writeStringMap(StringBuilder buf, Map<String, String> map) {
+        buf.append('{');
+        boolean first = true;
+        for (Map.Entry<String, String> entry: map.entrySet()) {
+            if (!first) {
+                buf.append(',');
+            }
+            first = false;
+            writeString(buf, entry.getKey());
+            buf.append(':');
+            writeString(buf, entry.getValue());
+        }
+        buf.append('}');
+    }
+
+    /**
+     * Writes a quoted and escaped JSON string, or null.
+     */
+    static void writeString(StringBuilder buf, String value) {
+        if (value == null) {
+            buf.append("null");
+            return;
+        }
+        buf.append('"');
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '<' && c != '>' && c != '&') {
+                continue;
+            }
+            buf.append(value, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    buf.append("\\\"");
+                    break;
+                case '\\':
+                    buf.append("\\\\");
+                    break;
+                case '\n':
+                    buf.append("\\n");
+                    break;
+                case '\r':
+                    buf.append("\\r");
+                    break;
+                case '\t':
+                    buf.append("\\t");
+                    break;
+                default:
+                    buf.append("\\u00").append(HEX[(c >> 4) & 0xf]).append(HEX[c & 0xf]);
+            }
+        }
+        buf.append(value, start, length);
+        buf.append('"');
+    }
+
+    /**
+     * Minimal recursive descent parser for the messages CCS sends. Known
+     * top level keys are copied into the message, all others are skipped.
+     */
+    private static final class Parser {
+
+        private final String mJson;
+        private final int mLength;
+        private int mPos;
+        private StringBuilder mUnescaped;
+
+        Parser(String json) {
+            if (json == null) {
+                throw new IllegalArgumentException("json must not be null");
+            }
+            mJson = json;
+            mLength = json.length();
+        }
+
+        InboundMessage parseMessage() {
+            InboundMessage msg = new InboundMessage();
+            skipWhitespace();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                mPos++;
+            } else {
+                while (true) {
+                    skipWhitespace();
+                    String key = parseString();
+                    skipWhitespace();
+                    expect(':');
+                    skipWhitespace();
+                    switch (key) {
+                        case "message_type":
+                            msg.mMessageType = parseValueAsString();
+                            break;
+                        case "message_id":
+                            msg.mMessageId = parseValueAsString();
+                            break;
+                        case "from":
+                            msg.mFrom = parseValueAsString();
+                            break;
+                        case "category":
+                            msg.mCategory = parseValueAsString();
+                            break;
+                        case "error":
+                            msg.mError = parseValueAsString();
+                            break;
+                        case "error_description":
+                            msg.mErrorDescription = parseValueAsString();
+                            break;
+                        case "registration_id":
+                            msg.mRegistrationId = parseValueAsString();
+                            break;
+                        case "control_type":
+                            msg.mControlType = parseValueAsString();
+                            break;
+                        case "data":
+                            msg.mData = parseStringMap();
+                            break;
+                        default:
+                            skipValue();
+                    }
+                    skipWhitespace();
+                    char c = next();
+                    if (c == '}') {
+                        break;
+                    }
+                    if (c != ',') {
+                        throw error("Expected , or }");
+                    }
+                }
+            }
+            skipWhitespace();
+            if (mPos != mLength) {
+                throw error("Unexpected trailing content");
+            }
+            return msg;
+        }
+
+        private Map<String, String> parseStringMap() {
+            if (peek() == 'n') {
+                parseLiteral();
+                return null;
+            }
+            Map<String, String> map = new HashMap<String, String>();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                mPos++;
+                return map;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = parseString();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                map.put(key, parseValueAsString());
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    return map;
+                }
+                if (c != ',') {
+                    throw error("Expected , or }");
+                }
+            }
+        }
+
+        /**
+         * Strings are unescaped, null is null and everything else (numbers,
+         * booleans, nested objects) is returned as its JSON text.
+         */
+        private String parseValueAsString() {
+            char c = peek();
+            if (c == '"') {
+                return parseString();
+            }
+            int start = mPos;
+            if (c == '{' || c == '[') {
+                skipValue();
+                return mJson.substring(start, mPos);
+            }
+            String literal = parseLiteral();
+            return "null".equals(literal) ? null : literal;
+        }
+
+        private String parseLiteral() {
+            int start = mPos;
+            while (mPos < mLength) {
+                char c = mJson.charAt(mPos);
+                if (c == ',' || c == '}' || c == ']' || isWhitespace(c)) {
+                    break;
+                }
+                mPos++;
+            }
+            if (start == mPos) {
+                throw error("Expected a value");
+            }
+            return mJson.substring(start, mPos);
+        }
+
+        private void skipValue() {
+            char c = peek();
+            if (c == '"') {
+                skipString();
+            } else if (c == '{' || c == '[') {
+                int depth = 0;
+                do {
+                    c = peek();
+                    if (c == '"') {
+                        skipString();
+                        continue;
+                    }
+                    if (c == '{' || c == '[') {
+                        depth++;
+                    } else if (c == '}' || c == ']') {
+                        depth--;
+                    }
+                    mPos++;
+                } while (depth > 0);
+            } else {
+                parseLiteral();
+            }
+        }
+
+        private void skipString() {
+            expect('"');
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return;
+                }
+                if (c == '\\') {
+                    next();
+                }
+            }
+        }
+
+        private String parseString() {
+            expect('"');
+            int start = mPos;
+            // fast path: no escapes, just cut the string out of the JSON
+            while (mPos < mLength) {
+                char c = mJson.charAt(mPos);
+                if (c == '"') {
+                    return mJson.substring(start, mPos++);
+                }
+                if (c == '\\') {
+                    break;
+                }
+                mPos++;
+            }
+            if (mUnescaped == null) {
+                mUnescaped = new StringBuilder();
+            }
+            StringBuilder buf = mUnescaped;
+            buf.setLength(0);
+            buf.append(mJson, start, mPos);
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return buf.toString();
+                }
+                if (c != '\\') {
+                    buf.append(c);
+                    continue;
+                }
+                c = next();
+                switch (c) {
+                    case 'b':
+                        buf.append('\b');
+                        break;
+                    case 'f':
+                        buf.append('\f');
+                        break;
+                    case 'n':
+                        buf.append('\n');
+                        break;
+                    case 'r':
+                        buf.append('\r');
+                        break;
+                    case 't':
+                        buf.append('\t');
+                        break;
+                    case 'u':
+                        if (mPos + 4 > mLength) {
+                            throw error("Incomplete unicode escape");
+                        }
+                        try {
+                            buf.append((char) Integer.parseInt(mJson.substring(mPos, mPos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Invalid unicode escape");
+                        }
+                        mPos += 4;
+                        break;
+                    default:
+                        buf.append(c);
+                }
+            }
+        }
+
+        private void skipWhitespace() {
+            while (mPos < mLength && isWhitespace(mJson.charAt(mPos))) {
+                mPos++;
+            }
+        }
+
+        private static boolean isWhitespace(char c) {
+            return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+        }
+
+        private char peek() {
+            if (mPos >= mLength) {
+                throw error("Unexpected end of JSON");
+            }
+            return mJson.charAt(mPos);
+        }
+
+        private char next() {
+            char c = peek();
+            mPos++;
+            return c;
+        }
+
+        private void expect(char expected) {
+            if (next() != expected) {
+                mPos--;
+                throw error("Expected " + expected);
+            }
+        }
+
+        private IllegalArgumentException error(String reason) {
+            return new IllegalArgumentException(reason + " at position " + mPos
+                    + " of JSON " + mJson);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers recently processed upstream messages, so that messages CCS
+ * redelivers (e.g. because an ack got lost during a reconnect) are not
+ * processed twice.
+ * <br>
+ * A message is identified by a 64 bit hash of its sender and message
+ * id. The hashes are kept in two fixed size, open addressing tables of
+ * longs: the current generation and the previous one. Every ttl/2 the
+ * previous generation is dropped and the current one takes its place,
+ * so a message is remembered for between ttl/2 and ttl. If a generation
+ * fills up earlier, it is rotated early. Thus memory stays flat (16
+ * bytes per slot) no matter how many messages arrive, at the cost of a
+ * shorter window under very high load.
+ * <br>
+ * Lookups and inserts are lock free. Two different messages could
+ * share a hash, but with 64 bits and some million messages per
+ * window this is very unlikely.
+ */
+public class UpstreamDeduplicator {
+
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+    public static final int DEFAULT_CAPACITY = 1 << 20;
+
+    /**
+     * Rotate once a generation is this full, to keep probe chains short.
+     */
+    private static final double MAX_LOAD = 0.5;
+
+    private final int mCapacity;
+    private final long mGenerationMillis;
+    private final AtomicLong mDuplicates = new AtomicLong();
+    private final AtomicLong mEarlyRotations = new AtomicLong();
+    private volatile Generation mCurrent;
+    private volatile Generation mPrevious;
+
+    private static class Generation {
+        final AtomicLongArray mTable;
+        final AtomicInteger mSize = new AtomicInteger();
+        final long mStartMillis;
+
+        Generation(int capacity, long startMillis) {
+            mTable = new AtomicLongArray(capacity);
+            mStartMillis = startMillis;
+        }
+
+        boolean contains(long hash) {
+            int mask = mTable.length() - 1;
+            for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+                long value = mTable.get(i);
+                if (value == hash) {
+                    return true;
+                }
+                if (value == 0) {
+                    return false;
+                }
+            }
+        }
+
+        /**
+         * @return false if the hash was already present.
+         */
+        boolean add(long hash) {
+            int mask = mTable.length() - 1;
+            for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+                long value = mTable.get(i);
+                if (value == hash) {
+                    return false;
+                }
+                if (value == 0) {
+                    if (mTable.compareAndSet(i, 0, hash)) {
+                        mSize.incrementAndGet();
+                        return true;
+                    }
+                    // somebody else took the slot; check it again
+                    i = (i - 1) & mask;
+                }
+            }
+        }
+    }
+
+    public UpstreamDeduplicator() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param ttlMillis How long a message is remembered at most.
+     * @param capacity Slots per generation, rounded up to a power of two.
+     * Up to half of them are used before a generation is rotated early.
+     */
+    public UpstreamDeduplicator(long ttlMillis, int capacity) {
+        if (ttlMillis < 2 || capacity < 2) {
+            throw new IllegalArgumentException("ttlMillis and capacity must be at least 2");
+        }
+        mCapacity = Integer.highestOneBit(capacity - 1) << 1;
+        mGenerationMillis = ttlMillis / 2;
+        long now = System.currentTimeMillis();
+        mCurrent = new Generation(mCapacity, now);
+        mPrevious = new Generation(mCapacity, now);
+    }
+
+    /**
+     * Whether the message has been processed recently. Counts the
+     * message as a duplicate if so.
+     */
+    public boolean isDuplicate(String from, String messageId) {
+        long hash = hash(from, messageId);
+        Generation current = current();
+        if (current.contains(hash) || mPrevious.contains(hash)) {
+            mDuplicates.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remembers a processed message.
+     */
+    public void processed(String from, String messageId) {
+        long hash = hash(from, messageId);
+        Generation current = current();
+        current.add(hash);
+        if (current.mSize.get() > mCapacity * MAX_LOAD) {
+            rotate(current, true);
+        }
+    }
+
+    private Generation current() {
+        Generation current = mCurrent;
+        if (System.currentTimeMillis() - current.mStartMillis >= mGenerationMillis) {
+            rotate(current, false);
+            current = mCurrent;
+        }
+        return current;
+    }
+
+    private synchronized void rotate(Generation expected, boolean early) {
+        if (mCurrent != expected) {
+            // another thread was faster
+            return;
+        }
+        if (early) {
+            mEarlyRotations.incrementAndGet();
+        }
+        mPrevious = expected;
+        mCurrent = new Generation(mCapacity, System.currentTimeMillis());
+    }
+
+    /**
+     * FNV-1a over both strings, followed by the finalizer of MurmurHash3
+     * to spread the bits over the table. Never returns 0, since 0 marks
+     * an empty slot.
+     */
+    static long hash(String from, String messageId) {
+        long hash = 0xcbf29ce484222325L;
+        if (from != null) {
+            for (int i = 0; i < from.length(); i++) {
+                hash = (hash ^ from.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        hash = (hash ^ 0xffff) * 0x100000001b3L;
+        if (messageId != null) {
+            for (int i = 0; i < messageId.length(); i++) {
+                hash = (hash ^ messageId.charAt(i)) * 0x100000001b3L;
+            }
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * The number of duplicates found so far.
+     */
+    public long getDuplicateCount() {
+        return mDuplicates.get();
+    }
+
+    /**
+     * How often a generation filled up before its time was up. If this
+     * grows, messages are remembered for less than the ttl and the
+     * capacity should be raised.
+     */
+    public long getEarlyRotationCount() {
+        return mEarlyRotations.get();
+    }
+}
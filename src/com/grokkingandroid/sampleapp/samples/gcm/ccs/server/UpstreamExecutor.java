@@ -0,0 +1,239 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the processing of upstream messages off Smack's packet reader
+ * thread.
+ * <br>
+ * Every key (the "from" of a message) with tasks waiting has a queue of
+ * its own, and at most one worker runs tasks of that key at any time.
+ * That way messages of one device are processed in the order they
+ * arrived, while messages of different devices are processed in
+ * parallel. The workers are shared: a key gives its worker back after
+ * each task, so a slow device only holds up its own messages.
+ * <br>
+ * If too many tasks are waiting, {@link #execute(String, Runnable)}
+ * blocks. This stalls the packet reader and thus pushes back on CCS
+ * instead of piling up messages in memory.
+ */
+public class UpstreamExecutor {
+
+    public static final Logger logger = Logger.getLogger(UpstreamExecutor.class.getName());
+
+    public static final int DEFAULT_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private static final AtomicInteger sExecutorCount = new AtomicInteger();
+
+    private final ExecutorService mWorkers;
+    private final ConcurrentMap<String, KeyQueue> mKeys = new ConcurrentHashMap<String, KeyQueue>();
+    private final int mCapacity;
+    /**
+     * One permit per task that may still be queued.
+     */
+    private final Semaphore mFree;
+    private volatile boolean mRunning = true;
+
+    public UpstreamExecutor() {
+        this(DEFAULT_THREADS, DEFAULT_CAPACITY, null);
+    }
+
+    /**
+     * @param threads The number of tasks that can run in parallel.
+     * @param capacity The number of tasks that can be queued or running
+     * in all.
+     * @param threadFactory Creates the workers. If null, daemon platform
+     * threads are used.
+     */
+    public UpstreamExecutor(int threads, int capacity, ThreadFactory threadFactory) {
+        if (threads < 1 || capacity < 1) {
+            throw new IllegalArgumentException("threads and capacity must be positive");
+        }
+        if (threadFactory == null) {
+            threadFactory = new ThreadFactory() {
+                private final int mExecutorId = sExecutorCount.incrementAndGet();
+                private final AtomicInteger mThreadCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ccs-upstream-" + mExecutorId
+                            + "-" + mThreadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+        }
+        // never holds more than one entry per key, so the capacity bounds it
+        mWorkers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), threadFactory);
+        mCapacity = capacity;
+        mFree = new Semaphore(capacity);
+    }
+
+    /**
+     * Queues a task for the given key. Blocks while the executor is at
+     * its capacity.
+     * @return false if the executor has been shut down. The task has not
+     * been queued in that case.
+     */
+    public boolean execute(String key, final Runnable task) {
+        try {
+            while (!mFree.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                if (!mRunning) {
+                    return false;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a free slot", e);
+        }
+        if (!mRunning) {
+            mFree.release();
+            return false;
+        }
+        final KeyQueue[] created = new KeyQueue[1];
+        mKeys.compute(key != null ? key : "", new BiFunction<String, KeyQueue, KeyQueue>() {
+            @Override
+            public KeyQueue apply(String k, KeyQueue queue) {
+                if (queue == null) {
+                    queue = new KeyQueue(k);
+                    created[0] = queue;
+                }
+                queue.mTasks.add(task);
+                return queue;
+            }
+        });
+        // a key that already had a queue is scheduled already
+        if (created[0] != null && !created[0].submit()) {
+            // shut down meanwhile, so run the tasks of the key right here
+            created[0].run();
+        }
+        return true;
+    }
+
+    /**
+     * The number of tasks queued or running.
+     */
+    public int getQueuedCount() {
+        return mCapacity - mFree.availablePermits();
+    }
+
+    /**
+     * Stops accepting tasks. Tasks already queued still run, then the
+     * workers exit. Callers blocked in {@link #execute(String, Runnable)}
+     * return false within 100 ms.
+     */
+    public void shutdown() {
+        mRunning = false;
+        mWorkers.shutdown();
+    }
+
+    /**
+     * The tasks of one key. It is in mKeys as long as it has tasks
+     * waiting or running, and only then scheduled with the workers.
+     */
+    private class KeyQueue implements Runnable {
+
+        private final String mKey;
+        /**
+         * Only touched inside compute() of mKeys.
+         */
+        private final Queue<Runnable> mTasks = new ArrayDeque<Runnable>();
+
+        KeyQueue(String key) {
+            mKey = key;
+        }
+
+        /**
+         * @return false if the workers have been shut down.
+         */
+        boolean submit() {
+            try {
+                mWorkers.execute(this);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean more = true;
+            while (more) {
+                try {
+                    head().run();
+                } catch (Throwable e) {
+                    // errors too, otherwise the key would never move on and
+                    // its messages would pile up until the packet reader blocks
+                    logger.log(Level.SEVERE, "Upstream task failed", e);
+                } finally {
+                    mFree.release();
+                }
+                more = next();
+                // to the back of the line, so that other keys get their turn
+                if (more && submit()) {
+                    return;
+                }
+            }
+        }
+
+        private Runnable head() {
+            final Runnable[] head = new Runnable[1];
+            mKeys.computeIfPresent(mKey, new BiFunction<String, KeyQueue, KeyQueue>() {
+                @Override
+                public KeyQueue apply(String k, KeyQueue queue) {
+                    head[0] = queue.mTasks.peek();
+                    return queue;
+                }
+            });
+            return head[0];
+        }
+
+        /**
+         * Removes the task that just ran.
+         * @return true if more tasks are waiting.
+         */
+        private boolean next() {
+            final boolean[] more = new boolean[1];
+            mKeys.computeIfPresent(mKey, new BiFunction<String, KeyQueue, KeyQueue>() {
+                @Override
+                public KeyQueue apply(String k, KeyQueue queue) {
+                    queue.mTasks.poll();
+                    more[0] = !queue.mTasks.isEmpty();
+                    return more[0] ? queue : null;
+                }
+            });
+            return more[0];
+        }
+    }
+}
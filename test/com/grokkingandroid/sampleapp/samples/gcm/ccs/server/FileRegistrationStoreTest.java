@@ -0,0 +1,232 @@
+/*
+ * Copyright 2014 Wolfram Rittmeyer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.grokkingandroid.sampleapp.samples.gcm.ccs.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes to a store, reopens it and checks that the contents survived.
+ */
+public class FileRegistrationStoreTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private FileRegistrationStore open(long compactionThreshold) throws IOException {
+        // commits only happen on flush() and close()
+        return new FileRegistrationStore(mFolder.getRoot(), new PseudoDao(), 60000,
+                compactionThreshold);
+    }
+
+    @Test
+    public void reopenRestoresAllChanges() throws IOException {
+        FileRegistrationStore store = open(Long.MAX_VALUE);
+        store.addRegistration("a", "alice");
+        store.addRegistration("b", "alice");
+        store.addRegistration("c", null);
+        store.addRegistration("d", "bob");
+        store.removeRegistration("b");
+        store.updateRegistration("d", "e");
+        store.storeNotificationKeyName("alice", "alice-key-name");
+        store.storeNotificationKey("alice", "alice-key");
+        store.close();
+
+        FileRegistrationStore reopened = open(Long.MAX_VALUE);
+        assertEquals(set("a", "c", "e"), set(reopened.getAllRegistrationIds()));
+        assertEquals("alice", reopened.getAccount("a"));
+        assertNull(reopened.getAccount("c"));
+        assertEquals("bob", reopened.getAccount("e"));
+        assertNull(reopened.getAccount("d"));
+        assertEquals("alice-key-name", reopened.getNotificationKeyName("alice"));
+        assertEquals("alice-key", reopened.getNotificationKey("alice"));
+        reopened.close();
+    }
+
+    @Test
+    public void reopenAfterCompactionsRestoresAllChanges() throws IOException {
+        // compacts on every flush
+        FileRegistrationStore store = open(1);
+        PseudoDao expected = new PseudoDao();
+        Random random = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 200; i++) {
+                String regId = "reg" + random.nextInt(500);
+                String account = random.nextInt(4) == 0 ? null : "account" + random.nextInt(50);
+                switch (random.nextInt(3)) {
+                    case 0:
+                        store.addRegistration(regId, account);
+                        expected.addRegistration(regId, account);
+                        break;
+                    case 1:
+                        store.removeRegistration(regId);
+                        expected.removeRegistration(regId);
+                        break;
+                    default:
+                        String canonical = "reg" + random.nextInt(500);
+                        store.updateRegistration(regId, canonical);
+                        expected.updateRegistration(regId, canonical);
+                }
+            }
+            store.flush();
+        }
+        store.close();
+        assertEquals(1, mFolder.getRoot().list(new SuffixFilter(".dat")).length);
+
+        FileRegistrationStore reopened = open(1);
+        assertSameContents(expected, reopened);
+        reopened.close();
+    }
+
+    /**
+     * An update that runs while the snapshot is written, after the
+     * snapshot has passed the canonical id but before it reads the
+     * account of the old one.
+     */
+    @Test
+    public void updateDuringCompactionKeepsTheAccount() throws IOException {
+        final SnapshotHookIndex index = new SnapshotHookIndex();
+        // only the first log gets past this, so the update stays in the second
+        final FileRegistrationStore store = new FileRegistrationStore(mFolder.getRoot(), index,
+                60000, 64);
+        for (int i = 0; i < 5; i++) {
+            store.addRegistration("p" + i, "padding");
+        }
+        store.addRegistration("x", "alice");
+        index.mBeforeGetAccount = new Runnable() {
+            @Override
+            public void run() {
+                store.updateRegistration("x", "y");
+            }
+        };
+        store.flush();
+        store.close();
+
+        FileRegistrationStore reopened = open(Long.MAX_VALUE);
+        assertEquals(set("p0", "p1", "p2", "p3", "p4", "y"),
+                set(reopened.getAllRegistrationIds()));
+        assertEquals("alice", reopened.getAccount("y"));
+        reopened.close();
+    }
+
+    @Test
+    public void tornRecordAtTheEndIsCutOff() throws IOException {
+        FileRegistrationStore store = open(Long.MAX_VALUE);
+        store.addRegistration("a", "alice");
+        store.addRegistration("b", "bob");
+        store.close();
+        // a length, a checksum and half of a body, as left by a crash
+        File log = mFolder.getRoot().listFiles(new SuffixFilter(".log"))[0];
+        long validLength = log.length();
+        FileOutputStream out = new FileOutputStream(log, true);
+        try {
+            out.write(new byte[] {0, 0, 0, 20, 1, 2, 3, 4, 1, 0, 5, 'c'});
+        } finally {
+            out.close();
+        }
+
+        FileRegistrationStore reopened = open(Long.MAX_VALUE);
+        assertEquals(validLength, log.length());
+        assertEquals(set("a", "b"), set(reopened.getAllRegistrationIds()));
+        reopened.addRegistration("c", "carol");
+        reopened.close();
+
+        FileRegistrationStore again = open(Long.MAX_VALUE);
+        assertEquals(set("a", "b", "c"), set(again.getAllRegistrationIds()));
+        assertEquals("carol", again.getAccount("c"));
+        again.close();
+    }
+
+    private static void assertSameContents(RegistrationStore expected, RegistrationStore actual) {
+        List<String> regIds = new ArrayList<String>(expected.getAllRegistrationIds());
+        Collections.sort(regIds);
+        List<String> actualRegIds = new ArrayList<String>(actual.getAllRegistrationIds());
+        Collections.sort(actualRegIds);
+        assertEquals(regIds, actualRegIds);
+        for (String regId: regIds) {
+            assertEquals(regId, expected.getAccount(regId), actual.getAccount(regId));
+        }
+        assertEquals(expected.getAccounts(), actual.getAccounts());
+        for (String account: expected.getAccounts()) {
+            assertEquals(set(expected.getAllRegistrationIdsForAccount(account)),
+                    set(actual.getAllRegistrationIdsForAccount(account)));
+        }
+        assertFalse(regIds.isEmpty());
+    }
+
+    private static HashSet<String> set(String... values) {
+        HashSet<String> set = new HashSet<String>();
+        Collections.addAll(set, values);
+        return set;
+    }
+
+    private static HashSet<String> set(List<String> values) {
+        return new HashSet<String>(values);
+    }
+
+    /**
+     * Iterates over a copy of the ids and runs a hook before the first
+     * account is read.
+     */
+    private static class SnapshotHookIndex extends PseudoDao {
+
+        volatile Runnable mBeforeGetAccount;
+
+        @Override
+        public Iterable<String> registrationIds() {
+            return new ArrayList<String>(getAllRegistrationIds());
+        }
+
+        @Override
+        public String getAccount(String regId) {
+            Runnable hook = mBeforeGetAccount;
+            if (hook != null) {
+                mBeforeGetAccount = null;
+                hook.run();
+            }
+            return super.getAccount(regId);
+        }
+    }
+
+    private static class SuffixFilter implements FilenameFilter {
+
+        private final String mSuffix;
+
+        SuffixFilter(String suffix) {
+            mSuffix = suffix;
+        }
+
+        @Override
+        public boolean accept(File dir, String name) {
+            return name.endsWith(mSuffix);
+        }
+    }
+}